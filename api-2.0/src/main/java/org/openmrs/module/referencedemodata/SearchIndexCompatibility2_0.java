@@ -0,0 +1,46 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.referencedemodata;
+
+import java.lang.annotation.Annotation;
+
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PersonName;
+import org.openmrs.annotation.OpenmrsProfile;
+import org.openmrs.api.context.Context;
+import org.springframework.stereotype.Component;
+
+@Component("referencedemodata.SearchIndexCompatibility")
+@OpenmrsProfile(openmrsPlatformVersion = "2.*")
+public class SearchIndexCompatibility2_0 implements SearchIndexCompatibility {
+
+	@Override
+	public void updatePatientSearchIndex() {
+		for (Class<?> type : new Class<?>[] { PersonName.class, PatientIdentifier.class }) {
+			// the names and identifiers are only indexed from some 2.x platform versions on
+			if (isIndexed(type)) {
+				Context.updateSearchIndexForType(type);
+			}
+		}
+	}
+
+	private static boolean isIndexed(Class<?> type) {
+		for (Annotation annotation : type.getAnnotations()) {
+			if ("org.hibernate.search.annotations.Indexed".equals(annotation.annotationType().getName())) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+/**
+ * The address lines of the demo patients, built once per run so that creating a patient doesn't concatenate strings.
+ * The lines of an address share the same numeric suffix, the index in the pool. Immutable.
+ */
+final class DemoAddressPool {
+
+	static final int SIZE = 10000;
+
+	private static final int SUFFIX_DIGITS = 4;
+
+	private final String[] address1 = new String[SIZE];
+
+	private final String[] cityVillage = new String[SIZE];
+
+	private final String[] stateProvince = new String[SIZE];
+
+	private final String[] country = new String[SIZE];
+
+	DemoAddressPool() {
+		char[] digits = new char[SUFFIX_DIGITS];
+		for (int i = 0; i < SIZE; i++) {
+			String suffix = new String(format(i, digits));
+			address1[i] = "Address1" + suffix;
+			cityVillage[i] = "City" + suffix;
+			stateProvince[i] = "State" + suffix;
+			country[i] = "Country" + suffix;
+		}
+	}
+
+	/**
+	 * Writes the number into the buffer as decimal digits, left-padded with zeros to the length of the buffer.
+	 */
+	static char[] format(int number, char[] digits) {
+		for (int i = digits.length - 1; i >= 0; i--) {
+			digits[i] = (char) ('0' + number % 10);
+			number /= 10;
+		}
+		return digits;
+	}
+
+	String getAddress1(int index) {
+		return address1[index];
+	}
+
+	String getCityVillage(int index) {
+		return cityVillage[index];
+	}
+
+	String getStateProvince(int index) {
+		return stateProvince[index];
+	}
+
+	String getCountry(int index) {
+		return country[index];
+	}
+}
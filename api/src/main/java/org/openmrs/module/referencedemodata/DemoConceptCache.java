@@ -0,0 +1,93 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openmrs.Concept;
+import org.openmrs.api.ConceptService;
+
+/**
+ * Resolves concept names to concept ids. Only the ids are kept, not the entities, so that the cache can be shared by
+ * all the workers of a run and outlives the sessions they clear after every batch. The entity is then loaded by id in
+ * the caller's session, which is a primary key lookup.
+ * <p>
+ * Names that don't resolve to a concept are cached too. The cache stops taking new entries once it holds
+ * {@code maxSize} names, the ones it already holds stay valid for the whole run.
+ */
+public class DemoConceptCache {
+
+	/**
+	 * Stands for a name that doesn't resolve to a concept.
+	 */
+	private static final Integer NOT_FOUND = -1;
+
+	private final ConcurrentMap<String, Integer> conceptIds = new ConcurrentHashMap<String, Integer>();
+
+	private final int maxSize;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong loadNanos = new AtomicLong();
+
+	public DemoConceptCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return the id of the concept with the given name, null if there is none
+	 */
+	public Integer getIdByName(ConceptService cs, String name) {
+		Integer conceptId = conceptIds.get(name);
+		if (conceptId != null) {
+			hits.incrementAndGet();
+		} else {
+			// concurrent misses for the same name may both load it, they get the same id
+			misses.incrementAndGet();
+			long start = System.nanoTime();
+			Concept concept = cs.getConcept(name);
+			loadNanos.addAndGet(System.nanoTime() - start);
+			conceptId = concept != null ? concept.getConceptId() : NOT_FOUND;
+			if (conceptIds.size() < maxSize) {
+				conceptIds.putIfAbsent(name, conceptId);
+			}
+		}
+		return NOT_FOUND.equals(conceptId) ? null : conceptId;
+	}
+
+	public int size() {
+		return conceptIds.size();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the time spent loading the concepts for the misses
+	 */
+	public long getLoadNanos() {
+		return loadNanos.get();
+	}
+
+	@Override
+	public String toString() {
+		return size() + " concepts, " + hits + " hits, " + misses + " misses, " + (loadNanos.get() / 1000000)
+		        + " ms loading";
+	}
+}
@@ -0,0 +1,191 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.LocalDate;
+import org.joda.time.LocalDateTime;
+import org.joda.time.Seconds;
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
+import org.openmrs.OpenmrsMetadata;
+import org.openmrs.Patient;
+import org.openmrs.PersonAddress;
+import org.openmrs.PersonName;
+import org.openmrs.Visit;
+
+/**
+ * A digest of the generated demo data, used to check that two runs created the same dataset, e.g. that benchmark runs
+ * with different thread counts or batch sizes loaded identical data.
+ * <p>
+ * Each patient is hashed on its own and the hashes are summed, so the digest doesn't depend on the order patients are
+ * created in. Only generated values take part: uuids, identifiers and audit fields differ between runs and are left
+ * out, metadata and concepts are referred to by uuid, and dates are taken relative to the run's reference date. Two
+ * runs with the same seed, patient count and reference data therefore have the same digest. Thread-safe.
+ */
+public class DemoDataDigest {
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final LocalDateTime referenceDate;
+
+	private final AtomicLong sum = new AtomicLong();
+
+	private final AtomicInteger patientCount = new AtomicInteger();
+
+	public DemoDataDigest(LocalDateTime referenceDate) {
+		this.referenceDate = referenceDate;
+	}
+
+	/**
+	 * Adds a generated patient to the digest.
+	 *
+	 * @param patient the patient
+	 * @param visits the visits created for the patient
+	 */
+	public void add(Patient patient, List<Visit> visits) {
+		sum.addAndGet(hash(describe(patient, visits)));
+		patientCount.incrementAndGet();
+	}
+
+	/**
+	 * Adds the patients of another digest, e.g. those of a batch once it is committed.
+	 *
+	 * @param other a digest with the same reference date
+	 */
+	public void add(DemoDataDigest other) {
+		sum.addAndGet(other.getValue());
+		patientCount.addAndGet(other.getPatientCount());
+	}
+
+	public int getPatientCount() {
+		return patientCount.get();
+	}
+
+	public long getValue() {
+		return sum.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%016x", getValue());
+	}
+
+	String describe(Patient patient, List<Visit> visits) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(patient.getGender());
+		PersonName name = patient.getPersonName();
+		sb.append('|').append(name.getGivenName()).append('|').append(name.getFamilyName());
+		PersonAddress address = patient.getPersonAddress();
+		if (address != null) {
+			sb.append('|').append(address.getAddress1()).append('|').append(address.getCityVillage()).append('|')
+			        .append(address.getStateProvince()).append('|').append(address.getCountry()).append('|')
+			        .append(address.getPostalCode());
+		}
+		LocalDate birthdate = new LocalDate(patient.getBirthdate());
+		// the birthdate is generated relative to the reference year
+		sb.append('|').append(referenceDate.getYear() - birthdate.getYear()).append('-')
+		        .append(birthdate.getMonthOfYear()).append('-').append(birthdate.getDayOfMonth());
+
+		List<String> visitDescriptions = new ArrayList<String>();
+		for (Visit visit : visits) {
+			visitDescriptions.add(describe(visit));
+		}
+		Collections.sort(visitDescriptions);
+		for (String visit : visitDescriptions) {
+			sb.append("\nV").append(visit);
+		}
+		return sb.toString();
+	}
+
+	private String describe(Visit visit) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(uuid(visit.getVisitType())).append('|').append(uuid(visit.getLocation())).append('|')
+		        .append(offset(visit.getStartDatetime())).append('|').append(offset(visit.getStopDatetime()));
+		List<String> encounters = new ArrayList<String>();
+		for (Encounter encounter : visit.getEncounters()) {
+			encounters.add(describe(encounter));
+		}
+		Collections.sort(encounters);
+		for (String encounter : encounters) {
+			sb.append("\n E").append(encounter);
+		}
+		return sb.toString();
+	}
+
+	private String describe(Encounter encounter) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(uuid(encounter.getEncounterType())).append('|').append(uuid(encounter.getLocation())).append('|')
+		        .append(uuid(encounter.getForm())).append('|').append(offset(encounter.getEncounterDatetime()));
+		List<String> obs = new ArrayList<String>();
+		for (Obs o : encounter.getObsAtTopLevel(false)) {
+			obs.add(describe(o));
+		}
+		Collections.sort(obs);
+		for (String o : obs) {
+			sb.append("\n  O").append(o);
+		}
+		return sb.toString();
+	}
+
+	private String describe(Obs obs) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(uuid(obs.getConcept())).append('|').append(offset(obs.getObsDatetime())).append('|')
+		        .append(obs.getValueNumeric()).append('|').append(uuid(obs.getValueCoded())).append('|')
+		        .append(obs.getValueText());
+		if (obs.isObsGrouping()) {
+			List<String> members = new ArrayList<String>();
+			for (Obs member : obs.getGroupMembers(false)) {
+				members.add(describe(member));
+			}
+			Collections.sort(members);
+			sb.append(members);
+		}
+		return sb.toString();
+	}
+
+	private String offset(Date date) {
+		if (date == null) {
+			return "";
+		}
+		// local date times, so that the offset doesn't shift with daylight saving time
+		return String.valueOf(Seconds.secondsBetween(referenceDate, new LocalDateTime(date)).getSeconds());
+	}
+
+	private static String uuid(OpenmrsMetadata metadata) {
+		return metadata == null ? "" : metadata.getUuid();
+	}
+
+	private static String uuid(Concept concept) {
+		return concept == null ? "" : concept.getUuid();
+	}
+
+	/**
+	 * FNV-1a over the characters, followed by a final mix so that similar patients don't end up with similar hashes,
+	 * which would make the sum weaker.
+	 */
+	static long hash(String s) {
+		long h = FNV_OFFSET_BASIS;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= FNV_PRIME;
+		}
+		return DemoPatientGenerator.mix64(h);
+	}
+}
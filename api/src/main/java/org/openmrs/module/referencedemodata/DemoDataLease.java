@@ -0,0 +1,235 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.jdbc.Work;
+
+/**
+ * A lease on the startup seeding, so that when several nodes share a database only one of them runs the setup steps
+ * and creates the demo patients, or splits them into {@link DemoPatientShards} that every node then takes part in.
+ * The lease is the {@value #GLOBAL_PROPERTY} global property, holding the owner and the
+ * time the lease expires at, {@code owner|expiresAtMillis}, and it's taken and renewed with a compare-and-set on that
+ * value. The owner renews it from a heartbeat thread, see {@link #startHeartbeat(Executor)}, and checks with
+ * {@link #renewIfDue()} that it still holds it between units of work. A lease that isn't renewed expires after
+ * {@code leaseMillis} so that a node that died while holding it doesn't block the others for good. Expiry is checked
+ * against the clock of the node trying to take the lease, so the nodes' clocks should roughly agree.
+ */
+class DemoDataLease {
+
+	static final String GLOBAL_PROPERTY = "referencedemodata.seedingLease";
+
+	static final long LEASE_MILLIS = 5 * 60 * 1000;
+
+	private static final long POLL_MILLIS = 1000;
+
+	private static final Log log = LogFactory.getLog(DemoDataLease.class);
+
+	private final String owner;
+
+	private final long leaseMillis;
+
+	private long renewedAt;
+
+	private boolean held;
+
+	private String holder;
+
+	DemoDataLease(long leaseMillis) {
+		this(ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID(), leaseMillis);
+	}
+
+	DemoDataLease(String owner, long leaseMillis) {
+		this.owner = owner;
+		this.leaseMillis = leaseMillis;
+	}
+
+	String getOwner() {
+		return owner;
+	}
+
+	/**
+	 * Takes the lease if it is free, expired or already ours. Otherwise waits up to {@code waitMillis} for the current
+	 * owner to release it or for it to expire, see {@link #getHolder()} for who holds it.
+	 *
+	 * @return whether the lease was taken
+	 * @should let only one of the nodes racing for it take it
+	 * @should take over a lease that expired
+	 */
+	synchronized boolean acquire(long waitMillis) {
+		long giveUpAt = System.currentTimeMillis() + waitMillis;
+		for (boolean first = true; !compareAndSet(true); first = false) {
+			if (System.currentTimeMillis() >= giveUpAt) {
+				return false;
+			}
+			if (first) {
+				log.info("Waiting for the demo data seeding lease held by " + getHolder());
+			}
+			try {
+				Thread.sleep(POLL_MILLIS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		held = true;
+		renewedAt = System.currentTimeMillis();
+		return true;
+	}
+
+	/**
+	 * Extends the lease once a fifth of it has gone by since it was last renewed, cheap enough to call after every
+	 * unit of work.
+	 *
+	 * @return false if the lease was lost to another node, which means the work should stop
+	 */
+	synchronized boolean renewIfDue() {
+		if (!held) {
+			return false;
+		}
+		if (System.currentTimeMillis() - renewedAt < leaseMillis / 5) {
+			return true;
+		}
+		if (!compareAndSet(false)) {
+			log.warn("Lost the demo data seeding lease to another node");
+			held = false;
+			return false;
+		}
+		renewedAt = System.currentTimeMillis();
+		return true;
+	}
+
+	/**
+	 * Renews the lease from a thread of the executor until it is released or lost, so that it doesn't expire while a
+	 * single unit of work takes longer than the lease, like the import of the metadata packages.
+	 *
+	 * @should keep the lease from expiring while it is held
+	 */
+	void startHeartbeat(Executor executor) {
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					while (awaitRenewal() && renewIfDue()) {
+						// renewed, wait for the next renewal
+					}
+				}
+				catch (RuntimeException e) {
+					log.error("Stopped renewing the demo data seeding lease", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits until the lease is due for renewal.
+	 *
+	 * @return false if the lease was released or lost in the meantime
+	 */
+	private synchronized boolean awaitRenewal() {
+		while (held) {
+			long dueInMillis = renewedAt + leaseMillis / 5 - System.currentTimeMillis();
+			if (dueInMillis <= 0) {
+				return true;
+			}
+			try {
+				wait(dueInMillis);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gives the lease up, if this node holds it.
+	 */
+	synchronized void release() {
+		if (!held) {
+			return;
+		}
+		held = false;
+		// stops the heartbeat
+		notifyAll();
+		GlobalPropertyRows.execute(new Work() {
+
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				String current = GlobalPropertyRows.read(connection, GLOBAL_PROPERTY);
+				if (current != null && current.startsWith(owner + "|")) {
+					GlobalPropertyRows.compareAndSet(connection, GLOBAL_PROPERTY, current, "");
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the owner of the lease when it was last found held by another node and until when, null if it wasn't
+	 */
+	synchronized String getHolder() {
+		if (holder == null) {
+			return null;
+		}
+		String expiresAt = StringUtils.substringAfterLast(holder, "|");
+		return StringUtils.substringBeforeLast(holder, "|") + " until "
+		        + (StringUtils.isNumeric(expiresAt) ? new Date(Long.parseLong(expiresAt)) : expiresAt);
+	}
+
+	/**
+	 * Sets the lease to this owner with a new expiry, if it's ours or, when {@code takeOver} is true, free or expired.
+	 */
+	private boolean compareAndSet(final boolean takeOver) {
+		final boolean[] result = new boolean[1];
+		GlobalPropertyRows.execute(new Work() {
+
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				String newValue = owner + "|" + (System.currentTimeMillis() + leaseMillis);
+				String current = GlobalPropertyRows.read(connection, GLOBAL_PROPERTY);
+				if (current == null) {
+					result[0] = takeOver && GlobalPropertyRows.insert(connection, GLOBAL_PROPERTY, newValue,
+					    "The node running the reference demo data seeding and when its lease expires");
+				} else if (current.startsWith(owner + "|") || (takeOver && isFreeOrExpired(current))) {
+					result[0] = GlobalPropertyRows.compareAndSet(connection, GLOBAL_PROPERTY, current, newValue);
+				}
+				if (!result[0]) {
+					holder = GlobalPropertyRows.read(connection, GLOBAL_PROPERTY);
+				}
+			}
+		});
+		return result[0];
+	}
+
+	private static boolean isFreeOrExpired(String value) {
+		if (StringUtils.isBlank(value)) {
+			return true;
+		}
+		try {
+			return Long.parseLong(StringUtils.substringAfterLast(value, "|")) < System.currentTimeMillis();
+		}
+		catch (NumberFormatException e) {
+			log.warn("Ignoring invalid value for " + GLOBAL_PROPERTY + ": " + value);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings and counts of what the module did since it was last started: how long each setup phase took, how many demo
+ * entities were written and how long the individual save calls took.
+ * <p>
+ * Updated by the demo patient workers while they run, so it is thread-safe, and cheap enough to be always on.
+ */
+public class DemoDataMetrics {
+
+	public static final String PATIENT_GENERATION = "patientGeneration";
+
+	/**
+	 * The calls whose latency is recorded, see {@link DemoDataWriter}.
+	 */
+	public enum SaveCall {
+		SAVE_PATIENT, SAVE_VISIT, FLUSH
+	}
+
+	private final long startedAt = System.currentTimeMillis();
+
+	private final List<Phase> phases = Collections.synchronizedList(new ArrayList<Phase>());
+
+	private final AtomicLong patients = new AtomicLong();
+
+	private final AtomicLong visits = new AtomicLong();
+
+	private final AtomicLong encounters = new AtomicLong();
+
+	private final AtomicLong obs = new AtomicLong();
+
+	private final Map<SaveCall, LatencyHistogram> latencies = new EnumMap<SaveCall, LatencyHistogram>(SaveCall.class);
+
+	public DemoDataMetrics() {
+		for (SaveCall call : SaveCall.values()) {
+			latencies.put(call, new LatencyHistogram());
+		}
+	}
+
+	/**
+	 * @return when the module was started, in milliseconds since the epoch
+	 */
+	public long getStartedAt() {
+		return startedAt;
+	}
+
+	void recordPhase(String name, long millis, boolean skipped) {
+		phases.add(new Phase(name, millis, skipped));
+	}
+
+	/**
+	 * @return the phases in the order they finished
+	 */
+	public List<Phase> getPhases() {
+		synchronized (phases) {
+			return new ArrayList<Phase>(phases);
+		}
+	}
+
+	void patientWritten() {
+		patients.incrementAndGet();
+	}
+
+	void visitWritten(int encounterCount, int obsCount) {
+		visits.incrementAndGet();
+		encounters.addAndGet(encounterCount);
+		obs.addAndGet(obsCount);
+	}
+
+	public long getPatientCount() {
+		return patients.get();
+	}
+
+	public long getVisitCount() {
+		return visits.get();
+	}
+
+	public long getEncounterCount() {
+		return encounters.get();
+	}
+
+	public long getObsCount() {
+		return obs.get();
+	}
+
+	public LatencyHistogram getLatency(SaveCall call) {
+		return latencies.get(call);
+	}
+
+	/**
+	 * A setup phase, or the patient generation, that ran or was skipped because nothing changed.
+	 */
+	public static class Phase {
+
+		private final String name;
+
+		private final long millis;
+
+		private final boolean skipped;
+
+		Phase(String name, long millis, boolean skipped) {
+			this.name = name;
+			this.millis = millis;
+			this.skipped = skipped;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return how long the phase took, 0 if it was skipped
+		 */
+		public long getMillis() {
+			return millis;
+		}
+
+		public boolean isSkipped() {
+			return skipped;
+		}
+	}
+
+	/**
+	 * Counts latencies in microseconds into logarithmic buckets, eight per power of two, so percentiles are accurate to
+	 * within about 12% without keeping the individual samples.
+	 */
+	public static class LatencyHistogram {
+
+		private static final int SUB_BUCKET_BITS = 3;
+
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(SUB_BUCKETS * (65 - SUB_BUCKET_BITS));
+
+		private final AtomicLong count = new AtomicLong();
+
+		private final AtomicLong totalMicros = new AtomicLong();
+
+		private final AtomicLong maxMicros = new AtomicLong();
+
+		void record(long nanos) {
+			long micros = Math.max(0, nanos / 1000);
+			buckets.incrementAndGet(bucketOf(micros));
+			count.incrementAndGet();
+			totalMicros.addAndGet(micros);
+			long max;
+			while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+				// retry
+			}
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getTotalMicros() {
+			return totalMicros.get();
+		}
+
+		public long getMaxMicros() {
+			return maxMicros.get();
+		}
+
+		/**
+		 * @param percentile between 0 and 100
+		 * @return the upper bound of the bucket holding the percentile in microseconds, 0 if nothing was recorded
+		 */
+		public long getPercentileMicros(double percentile) {
+			long total = count.get();
+			if (total == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+			long seen = 0;
+			for (int i = 0; i < buckets.length(); i++) {
+				seen += buckets.get(i);
+				if (seen >= rank) {
+					return Math.min(upperBoundOf(i), maxMicros.get());
+				}
+			}
+			return maxMicros.get();
+		}
+
+		private static int bucketOf(long micros) {
+			if (micros < SUB_BUCKETS) {
+				return (int) micros;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(micros);
+			int shift = exponent - SUB_BUCKET_BITS;
+			return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((micros >> shift) & (SUB_BUCKETS - 1));
+		}
+
+		private static long upperBoundOf(int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+			long lowerBound = (long) (SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+			return lowerBound + (1L << shift) - 1;
+		}
+	}
+}
@@ -0,0 +1,227 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.ModuleException;
+
+/**
+ * The shape of the generated demo data: how many visits patients get, what the visits are made of and how far back they
+ * go. The named profiles are defined in {@value #PROFILES_FILE}, the one to use is selected with the
+ * {@link ReferenceDemoDataConstants#DEMO_DATA_PROFILE} global property and any of its settings can be overridden with a
+ * global property named after the setting. Immutable.
+ */
+public final class DemoDataProfile {
+
+	public static final String DEFAULT_PROFILE = "small";
+
+	static final String PROFILES_FILE = "demoDataProfiles.properties";
+
+	/**
+	 * The number of vital signs the generator knows about, the most obs a vitals encounter can have.
+	 */
+	static final int MAX_VITALS_OBS = VitalSignBounds.NAMES.length;
+
+	private final String name;
+
+	private final Range visitsPerPatient;
+
+	private final int chronicPatientPercent;
+
+	private final Range chronicVisitsPerPatient;
+
+	private final int shortVisitPercent;
+
+	private final Range vitalsPerVisit;
+
+	private final Range vitalsObsPerEncounter;
+
+	private final Range diagnosesPerVisitNote;
+
+	private final int visitDaysBack;
+
+	DemoDataProfile(String name, Properties settings) {
+		this.name = name;
+		this.visitsPerPatient = getRange(settings, "visitsPerPatient", 0, Integer.MAX_VALUE);
+		this.chronicPatientPercent = getRange(settings, "chronicPatientPercent", 0, 100).getMin();
+		this.chronicVisitsPerPatient = getRange(settings, "chronicVisitsPerPatient", 0, Integer.MAX_VALUE);
+		this.shortVisitPercent = getRange(settings, "shortVisitPercent", 0, 100).getMin();
+		this.vitalsPerVisit = getRange(settings, "vitalsPerVisit", 0, Integer.MAX_VALUE);
+		this.vitalsObsPerEncounter = getRange(settings, "vitalsObsPerEncounter", 0, MAX_VITALS_OBS);
+		this.diagnosesPerVisitNote = getRange(settings, "diagnosesPerVisitNote", 1, Integer.MAX_VALUE);
+		this.visitDaysBack = getRange(settings, "visitDaysBack", 0, Integer.MAX_VALUE).getMin();
+	}
+
+	/**
+	 * Loads the profile selected with the {@link ReferenceDemoDataConstants#DEMO_DATA_PROFILE} global property, along
+	 * with the overrides of its settings.
+	 *
+	 * @return the profile
+	 * @throws ModuleException if the profile doesn't exist or one of its settings is invalid
+	 */
+	public static DemoDataProfile load() {
+		AdministrationService as = Context.getAdministrationService();
+		String name = StringUtils.defaultIfBlank(as.getGlobalProperty(ReferenceDemoDataConstants.DEMO_DATA_PROFILE),
+		    DEFAULT_PROFILE).trim();
+
+		Properties settings = readProfile(name);
+		for (String setting : settings.stringPropertyNames()) {
+			String value = as.getGlobalProperty(ReferenceDemoDataConstants.DEMO_DATA_PROFILE + "." + setting);
+			if (StringUtils.isNotBlank(value)) {
+				settings.setProperty(setting, value);
+			}
+		}
+		return new DemoDataProfile(name, settings);
+	}
+
+	/**
+	 * @return the settings of the named profile in {@value #PROFILES_FILE}, without the overrides
+	 */
+	static Properties readProfile(String name) {
+		Properties profiles = new Properties();
+		InputStream in = DemoDataProfile.class.getClassLoader().getResourceAsStream(PROFILES_FILE);
+		if (in == null) {
+			throw new ModuleException("Cannot create demo patients, " + PROFILES_FILE + " is missing");
+		}
+		try {
+			profiles.load(in);
+		}
+		catch (IOException e) {
+			throw new ModuleException("Failed to read " + PROFILES_FILE, e);
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+		}
+
+		Properties settings = new Properties();
+		for (String key : profiles.stringPropertyNames()) {
+			if (key.startsWith(name + ".")) {
+				settings.setProperty(key.substring(name.length() + 1), profiles.getProperty(key));
+			}
+		}
+		if (settings.isEmpty()) {
+			throw new ModuleException("Cannot create demo patients, there is no demo data profile named '" + name
+			        + "' in " + PROFILES_FILE);
+		}
+		return settings;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Range getVisitsPerPatient() {
+		return visitsPerPatient;
+	}
+
+	public int getChronicPatientPercent() {
+		return chronicPatientPercent;
+	}
+
+	public Range getChronicVisitsPerPatient() {
+		return chronicVisitsPerPatient;
+	}
+
+	public int getShortVisitPercent() {
+		return shortVisitPercent;
+	}
+
+	public Range getVitalsPerVisit() {
+		return vitalsPerVisit;
+	}
+
+	public Range getVitalsObsPerEncounter() {
+		return vitalsObsPerEncounter;
+	}
+
+	public Range getDiagnosesPerVisitNote() {
+		return diagnosesPerVisitNote;
+	}
+
+	public int getVisitDaysBack() {
+		return visitDaysBack;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	private Range getRange(Properties settings, String setting, int lowest, int highest) {
+		String value = settings.getProperty(setting);
+		if (StringUtils.isBlank(value)) {
+			throw new ModuleException("Demo data profile '" + name + "' is missing the " + setting + " setting");
+		}
+		String[] bounds = StringUtils.split(value.trim(), "-", 2);
+		int min;
+		int max;
+		try {
+			min = Integer.parseInt(bounds[0].trim());
+			max = bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : min;
+		}
+		catch (NumberFormatException e) {
+			throw invalidSetting(setting, value, "expected a number or a range like 1-5 between " + lowest + " and "
+			        + highest);
+		}
+		if (max < min) {
+			throw invalidSetting(setting, value, "the range ends below where it starts");
+		}
+		// the numbers are drawn with Random.nextInt(max - min + 1)
+		if ((long) max - min + 1 > Integer.MAX_VALUE) {
+			throw invalidSetting(setting, value, "the range can hold at most " + Integer.MAX_VALUE + " numbers");
+		}
+		if (min < lowest || max > highest) {
+			throw invalidSetting(setting, value, "expected a number or a range like 1-5 between " + lowest + " and "
+			        + highest);
+		}
+		return new Range(min, max);
+	}
+
+	private ModuleException invalidSetting(String setting, String value, String reason) {
+		return new ModuleException("Invalid " + setting + " for demo data profile '" + name + "': " + value + ", "
+		        + reason + ", set in " + PROFILES_FILE + " or the " + ReferenceDemoDataConstants.DEMO_DATA_PROFILE + "."
+		        + setting + " global property");
+	}
+
+	/**
+	 * A range of whole numbers, both ends included.
+	 */
+	public static final class Range {
+
+		private final int min;
+
+		private final int max;
+
+		Range(int min, int max) {
+			this.min = min;
+			this.max = max;
+		}
+
+		public int getMin() {
+			return min;
+		}
+
+		public int getMax() {
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return min == max ? String.valueOf(min) : min + "-" + max;
+		}
+	}
+}
@@ -0,0 +1,255 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.EncounterType;
+import org.openmrs.Form;
+import org.openmrs.Location;
+import org.openmrs.OpenmrsObject;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.VisitType;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.EncounterService;
+import org.openmrs.api.LocationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.ModuleException;
+import org.openmrs.module.emrapi.EmrApiConstants;
+import org.openmrs.module.referencemetadata.ReferenceMetadataConstants;
+
+/**
+ * Immutable snapshot of the metadata the demo patient generator refers to. It is loaded once per run so that the
+ * generator doesn't have to look anything up by name while creating visits, and so that a run fails before creating
+ * any patient if something is missing.
+ * <p>
+ * The snapshot holds entities loaded in the current session, so it should only be used by the thread that loaded it.
+ */
+public final class DemoDataReferenceData {
+
+	public static final String INPATIENT_WARD = "Inpatient Ward";
+
+	public static final String OUTPATIENT_CLINIC = "Outpatient Clinic";
+
+	public static final String VISIT_NOTE = "Visit Note";
+
+	public static final String VITALS = "Vitals";
+
+	public static final String ADMISSION = "Admission";
+
+	public static final String DISCHARGE = "Discharge";
+
+	private static final String[] ENCOUNTER_TYPE_NAMES = { VITALS, VISIT_NOTE, ADMISSION, DISCHARGE };
+
+	public static final String DIAGNOSIS_CONCEPT_SET = "Diagnosis Concept Set";
+
+	public static final String CODED_DIAGNOSIS = "Coded Diagnosis";
+
+	public static final String PRESUMED_DIAGNOSIS = "Presumed diagnosis";
+
+	public static final String CONFIRMED_DIAGNOSIS = "Confirmed diagnosis";
+
+	/**
+	 * The emrapi codes of the concepts making up a diagnosis obs group, each with the concept name to fall back to.
+	 */
+	private static final String[][] DIAGNOSIS_CONCEPTS = { { DIAGNOSIS_CONCEPT_SET, "Visit Diagnoses" },
+	        { CODED_DIAGNOSIS, "DIAGNOSIS LIST" },
+	        { EmrApiConstants.CONCEPT_CODE_DIAGNOSIS_CERTAINTY, EmrApiConstants.CONCEPT_CODE_DIAGNOSIS_CERTAINTY },
+	        { PRESUMED_DIAGNOSIS, PRESUMED_DIAGNOSIS }, { CONFIRMED_DIAGNOSIS, CONFIRMED_DIAGNOSIS },
+	        { EmrApiConstants.CONCEPT_CODE_DIAGNOSIS_ORDER, EmrApiConstants.CONCEPT_CODE_DIAGNOSIS_ORDER },
+	        { EmrApiConstants.CONCEPT_CODE_DIAGNOSIS_ORDER_PRIMARY, EmrApiConstants.CONCEPT_CODE_DIAGNOSIS_ORDER_PRIMARY },
+	        { EmrApiConstants.CONCEPT_CODE_DIAGNOSIS_ORDER_SECONDARY, EmrApiConstants.CONCEPT_CODE_DIAGNOSIS_ORDER_SECONDARY } };
+
+	private static final Log log = LogFactory.getLog(DemoDataReferenceData.class);
+
+	/**
+	 * Orders metadata by id, so that what is picked by index for a seed doesn't depend on the order the database
+	 * returns it in.
+	 */
+	static final Comparator<OpenmrsObject> BY_ID = new Comparator<OpenmrsObject>() {
+
+		@Override
+		public int compare(OpenmrsObject o1, OpenmrsObject o2) {
+			return o1.getId().compareTo(o2.getId());
+		}
+	};
+
+	private final PatientIdentifierType patientIdentifierType;
+
+	private final List<VisitType> visitTypes;
+
+	private final Location inpatientWard;
+
+	private final Location outpatientClinic;
+
+	private final Map<String, EncounterType> encounterTypes;
+
+	private final Form vitalsForm;
+
+	private final Form visitNoteForm;
+
+	private final Map<String, Concept> diagnosisConcepts;
+
+	private final VitalSignBounds vitalSigns;
+
+	DemoDataReferenceData(PatientIdentifierType patientIdentifierType, List<VisitType> visitTypes,
+	    Location inpatientWard, Location outpatientClinic, Map<String, EncounterType> encounterTypes, Form vitalsForm,
+	    Form visitNoteForm, Map<String, Concept> diagnosisConcepts, VitalSignBounds vitalSigns) {
+		this.patientIdentifierType = patientIdentifierType;
+		this.visitTypes = Collections.unmodifiableList(new ArrayList<VisitType>(visitTypes));
+		this.inpatientWard = inpatientWard;
+		this.outpatientClinic = outpatientClinic;
+		this.encounterTypes = Collections.unmodifiableMap(new HashMap<String, EncounterType>(encounterTypes));
+		this.vitalsForm = vitalsForm;
+		this.visitNoteForm = visitNoteForm;
+		this.diagnosisConcepts = Collections.unmodifiableMap(new HashMap<String, Concept>(diagnosisConcepts));
+		this.vitalSigns = vitalSigns;
+	}
+
+	/**
+	 * Loads the snapshot in the current session.
+	 *
+	 * @param requiredConceptNames names of the concepts the generator is going to create obs for
+	 * @return the snapshot
+	 * @throws ModuleException listing everything that is missing, if any required metadata is missing
+	 */
+	public static DemoDataReferenceData load(List<String> requiredConceptNames) {
+		List<String> missing = new ArrayList<String>();
+
+		PatientIdentifierType patientIdentifierType = Context.getPatientService().getPatientIdentifierTypeByName(
+		    ReferenceMetadataConstants.OPENMRS_ID_NAME);
+		if (patientIdentifierType == null) {
+			missing.add("patient identifier type '" + ReferenceMetadataConstants.OPENMRS_ID_NAME + "'");
+		}
+
+		List<VisitType> visitTypes = new ArrayList<VisitType>(Context.getVisitService().getAllVisitTypes());
+		Collections.sort(visitTypes, BY_ID);
+		if (visitTypes.isEmpty()) {
+			missing.add("visit types");
+		}
+
+		LocationService ls = Context.getLocationService();
+		Location inpatientWard = ls.getLocation(INPATIENT_WARD);
+		if (inpatientWard == null) {
+			missing.add("location '" + INPATIENT_WARD + "'");
+		}
+		Location outpatientClinic = ls.getLocation(OUTPATIENT_CLINIC);
+		if (outpatientClinic == null) {
+			missing.add("location '" + OUTPATIENT_CLINIC + "'");
+		}
+
+		EncounterService es = Context.getEncounterService();
+		Map<String, EncounterType> encounterTypes = new HashMap<String, EncounterType>();
+		for (String name : ENCOUNTER_TYPE_NAMES) {
+			EncounterType encounterType = es.getEncounterType(name);
+			if (encounterType == null) {
+				missing.add("encounter type '" + name + "'");
+			}
+			encounterTypes.put(name, encounterType);
+		}
+
+		Form vitalsForm = Context.getFormService().getForm(VITALS);
+		if (vitalsForm == null) {
+			missing.add("form '" + VITALS + "'");
+		}
+		// the visit note form comes from the reference application's html forms, encounters are fine without it
+		Form visitNoteForm = Context.getFormService().getForm(VISIT_NOTE);
+		if (visitNoteForm == null) {
+			log.warn("No '" + VISIT_NOTE + "' form found, demo visit notes won't be linked to a form");
+		}
+
+		ConceptService cs = Context.getConceptService();
+		for (String conceptName : requiredConceptNames) {
+			if (cs.getConcept(conceptName) == null) {
+				missing.add("concept '" + conceptName + "'");
+			}
+		}
+
+		Map<String, Concept> diagnosisConcepts = new HashMap<String, Concept>();
+		for (int i = 0; i < DIAGNOSIS_CONCEPTS.length; i++) {
+			String code = DIAGNOSIS_CONCEPTS[i][0];
+			Concept concept = getEmrApiConcept(cs, code, DIAGNOSIS_CONCEPTS[i][1]);
+			if (concept == null) {
+				missing.add("concept '" + code + "'");
+			}
+			diagnosisConcepts.put(code, concept);
+		}
+
+		if (!missing.isEmpty()) {
+			throw new ModuleException("Cannot create demo patients, the following metadata is missing: "
+			        + StringUtils.join(missing, ", "));
+		}
+
+		return new DemoDataReferenceData(patientIdentifierType, visitTypes, inpatientWard, outpatientClinic,
+		        encounterTypes, vitalsForm, visitNoteForm, diagnosisConcepts, VitalSignBounds.load(cs));
+	}
+
+	/**
+	 * Looks a concept up by its emrapi mapping, which matches the code exactly regardless of how the database compares
+	 * strings. Falls back to the concept name for dictionaries without the emrapi mappings.
+	 */
+	private static Concept getEmrApiConcept(ConceptService cs, String code, String name) {
+		Concept concept = cs.getConceptByMapping(code, EmrApiConstants.EMR_CONCEPT_SOURCE_NAME);
+		if (concept == null) {
+			concept = cs.getConcept(name);
+		}
+		return concept;
+	}
+
+	public PatientIdentifierType getPatientIdentifierType() {
+		return patientIdentifierType;
+	}
+
+	public List<VisitType> getVisitTypes() {
+		return visitTypes;
+	}
+
+	public Location getInpatientWard() {
+		return inpatientWard;
+	}
+
+	public Location getOutpatientClinic() {
+		return outpatientClinic;
+	}
+
+	public EncounterType getEncounterType(String name) {
+		return encounterTypes.get(name);
+	}
+
+	public Form getVitalsForm() {
+		return vitalsForm;
+	}
+
+	public Form getVisitNoteForm() {
+		return visitNoteForm;
+	}
+
+	/**
+	 * @param code the emrapi code of one of the diagnosis concepts, e.g.
+	 *            {@link EmrApiConstants#CONCEPT_CODE_DIAGNOSIS_CERTAINTY}
+	 * @return the concept
+	 */
+	public Concept getDiagnosisConcept(String code) {
+		return diagnosisConcepts.get(code);
+	}
+
+	VitalSignBounds getVitalSigns() {
+		return vitalSigns;
+	}
+}
@@ -0,0 +1,33 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import org.openmrs.Patient;
+import org.openmrs.Visit;
+
+/**
+ * Persists the entities created by a {@link DemoPatientGenerator}. The generator builds every visit completely in
+ * memory, with its encounters and their obs, and hands it over in one go. A writer may write an entity right away or
+ * hold on to it until {@link #flush()}.
+ */
+interface DemoDataWriter {
+
+	void savePatient(Patient patient);
+
+	/**
+	 * Writes the visit along with all its encounters and their obs.
+	 */
+	void saveVisit(Visit visit);
+
+	/**
+	 * Writes anything that is still pending, called at the end of every batch inside the batch's transaction.
+	 */
+	void flush();
+}
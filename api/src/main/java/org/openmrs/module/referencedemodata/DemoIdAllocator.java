@@ -0,0 +1,65 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands out primary keys for rows written directly with JDBC. The first id for a table is one more than the highest id
+ * in the table at the time, after that ids are counted up in memory. At the start of every batch the next ids are moved
+ * past the rows inserted by others since, e.g. a patient registered through the services between two batches.
+ * <p>
+ * Shared by all the workers of a run, so it is thread-safe, but it assumes nothing else inserts into the tables while
+ * a batch is being written. That's why the JDBC loader is refused when the demo patients are created in the background
+ * or by several nodes.
+ */
+class DemoIdAllocator {
+
+	private final Map<String, Integer> nextIds = new HashMap<String, Integer>();
+
+	private final Map<String, String> idColumns = new HashMap<String, String>();
+
+	synchronized int next(Connection connection, String table, String idColumn) throws SQLException {
+		Integer next = nextIds.get(table);
+		if (next == null) {
+			next = getMaxId(connection, table, idColumn) + 1;
+			idColumns.put(table, idColumn);
+		}
+		nextIds.put(table, next + 1);
+		return next;
+	}
+
+	/**
+	 * Moves the next id of every table past its highest id, call at the start of every batch. The ids already handed
+	 * out to the batches of the other workers are kept clear of, even though they may not be committed yet.
+	 */
+	synchronized void refresh(Connection connection) throws SQLException {
+		for (Map.Entry<String, Integer> next : nextIds.entrySet()) {
+			int maxId = getMaxId(connection, next.getKey(), idColumns.get(next.getKey()));
+			next.setValue(Math.max(next.getValue(), maxId + 1));
+		}
+	}
+
+	private int getMaxId(Connection connection, String table, String idColumn) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet rs = statement.executeQuery("select max(" + idColumn + ") from " + table);
+			return rs.next() ? rs.getInt(1) : 0;
+		}
+		finally {
+			statement.close();
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.module.idgen.AutoGenerationOption;
+import org.openmrs.module.idgen.IdentifierSource;
+import org.openmrs.module.idgen.service.IdentifierSourceService;
+
+/**
+ * Hands out identifiers for demo patients from blocks reserved up front through idgen, so that the identifier source
+ * is locked and updated once per block instead of once per patient.
+ * <p>
+ * When the identifier type has no auto generation source, identifiers are generated one at a time as before. Not
+ * thread-safe, every generator has its own queue.
+ */
+class DemoIdentifierQueue {
+
+	static final String COMMENT = "DemoData";
+
+	private final Log log = LogFactory.getLog(getClass());
+
+	private final IdentifierSourceService iss;
+
+	private final PatientIdentifierType identifierType;
+
+	private final Integer sourceId;
+
+	private final Deque<String> reserved = new ArrayDeque<String>();
+
+	DemoIdentifierQueue(IdentifierSourceService iss, PatientIdentifierType identifierType) {
+		this.iss = iss;
+		this.identifierType = identifierType;
+		AutoGenerationOption option = iss.getAutoGenerationOption(identifierType);
+		IdentifierSource source = option != null ? option.getSource() : null;
+		// only the id is kept, the generator clears the session between batches
+		this.sourceId = source != null ? source.getId() : null;
+	}
+
+	/**
+	 * Reserves identifiers for the next {@code count} patients. This should be called outside of the transaction the
+	 * patients are saved in, so that the identifier source isn't locked for the duration of that transaction.
+	 */
+	void reserve(int count) {
+		if (sourceId != null && count > 0) {
+			reserved.addAll(iss.generateIdentifiers(iss.getIdentifierSource(sourceId), count, COMMENT));
+		}
+	}
+
+	String next() {
+		String identifier = reserved.poll();
+		if (identifier == null) {
+			identifier = iss.generateIdentifier(identifierType, COMMENT);
+		}
+		return identifier;
+	}
+
+	/**
+	 * Drops the identifiers that were reserved but not used, e.g. because the batch they were reserved for failed.
+	 * idgen can't take identifiers back, so they are logged to account for the gap.
+	 */
+	void discardUnused() {
+		if (!reserved.isEmpty()) {
+			log.warn(reserved.size() + " reserved demo patient identifiers were not used: " + reserved);
+			reserved.clear();
+		}
+	}
+}
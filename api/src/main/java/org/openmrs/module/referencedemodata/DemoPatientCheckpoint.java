@@ -0,0 +1,276 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.jdbc.Work;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.ModuleException;
+
+/**
+ * Durable record of which demo patients of a run have been created, so that a run that was interrupted, e.g. because
+ * the server was killed, carries on with the remaining patients on the next startup instead of starting over.
+ * <p>
+ * The checkpoint is kept in the {@link ReferenceDemoDataConstants#DEMO_PATIENT_CHECKPOINT} global property as the
+ * requested patient count followed by the ranges of patient indexes created so far, e.g. {@code 1000:0-200,500-650}
+ * with the end of each range exclusive. Each batch is recorded in its own transaction, so the patients of a batch and
+ * their checkpoint are committed together and an interruption never repeats a committed batch. Since patients are
+ * generated from their index the resumed run creates the same patients the interrupted one would have.
+ * <p>
+ * The global property is read and written with plain JDBC, see {@link GlobalPropertyRows}, so that it never goes
+ * through the session's cache while the workers update it.
+ * <p>
+ * Thread-safe, all the workers of a run share one checkpoint.
+ */
+public class DemoPatientCheckpoint {
+
+	private static final Log log = LogFactory.getLog(DemoPatientCheckpoint.class);
+
+	private static final int MAX_SAVE_ATTEMPTS = 10;
+
+	private final int patientCount;
+
+	/**
+	 * The created ranges, from start to end, never overlapping or touching.
+	 */
+	private final TreeMap<Integer, Integer> created = new TreeMap<Integer, Integer>();
+
+	DemoPatientCheckpoint(int patientCount) {
+		this.patientCount = patientCount;
+	}
+
+	/**
+	 * Loads the checkpoint of the run creating {@code patientCount} patients. A checkpoint left by a run with a
+	 * different count is discarded. When there is none for the run the first {@code createdCount} patients are taken
+	 * as created, e.g. those of earlier runs that are being topped up. The checkpoint is saved right away, so that the
+	 * batches only ever update it.
+	 *
+	 * @param patientCount the number of patients requested
+	 * @param createdCount the number of patients created before the run
+	 * @return the checkpoint
+	 */
+	public static DemoPatientCheckpoint load(final int patientCount, final int createdCount) {
+		final DemoPatientCheckpoint[] checkpoint = new DemoPatientCheckpoint[1];
+		// the global property may have been set through the services
+		Context.flushSession();
+		GlobalPropertyRows.execute(new Work() {
+
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				String property = ReferenceDemoDataConstants.DEMO_PATIENT_CHECKPOINT;
+				// when another node saves it in the meantime, start over from the one it saved
+				for (int attempt = 1; ; attempt++) {
+					String value = GlobalPropertyRows.read(connection, property);
+					checkpoint[0] = new DemoPatientCheckpoint(patientCount);
+					if (StringUtils.isNotBlank(value)) {
+						try {
+							checkpoint[0].parse(value.trim());
+						}
+						catch (RuntimeException e) {
+							log.warn("Ignoring invalid demo patient checkpoint: " + value);
+							checkpoint[0].created.clear();
+						}
+					}
+					if (checkpoint[0].created.isEmpty() && createdCount > 0) {
+						checkpoint[0].add(0, Math.min(createdCount, patientCount));
+					}
+					if (save(connection, property, value, checkpoint[0].toString())) {
+						return;
+					}
+					if (attempt == MAX_SAVE_ATTEMPTS) {
+						throw new ModuleException("Failed to save the demo patient checkpoint, it keeps changing: " + value);
+					}
+				}
+			}
+		});
+		return checkpoint[0];
+	}
+
+	/**
+	 * @return false if the saved checkpoint is no longer {@code current}
+	 */
+	private static boolean save(Connection connection, String property, String current, String value)
+	        throws SQLException {
+		if (current == null) {
+			return GlobalPropertyRows.insert(connection, property, value,
+			    "Progress of the demo patient generation, used to resume it after an interruption");
+		}
+		return current.equals(value) || GlobalPropertyRows.compareAndSet(connection, property, current, value);
+	}
+
+	void parse(String value) {
+		String count = StringUtils.substringBefore(value, ":");
+		if (Integer.parseInt(count) != patientCount) {
+			log.warn("Ignoring the demo patient checkpoint of a run creating " + count + " patients: " + value);
+			return;
+		}
+		for (String range : StringUtils.split(StringUtils.substringAfter(value, ":"), ',')) {
+			int from = Integer.parseInt(StringUtils.substringBefore(range, "-"));
+			int to = Integer.parseInt(StringUtils.substringAfter(range, "-"));
+			if (from < 0 || to > patientCount || from >= to) {
+				throw new IllegalArgumentException("Invalid range: " + range);
+			}
+			add(from, to);
+		}
+	}
+
+	public int getPatientCount() {
+		return patientCount;
+	}
+
+	/**
+	 * @return the ranges of patient indexes still to be created, in ascending order, each as {from, to} with the end
+	 *         exclusive
+	 */
+	public synchronized List<int[]> getRemainingRanges() {
+		List<int[]> remaining = new ArrayList<int[]>();
+		int next = 0;
+		for (Map.Entry<Integer, Integer> range : created.entrySet()) {
+			if (range.getKey() > next) {
+				remaining.add(new int[] { next, range.getKey() });
+			}
+			next = range.getValue();
+		}
+		if (next < patientCount) {
+			remaining.add(new int[] { next, patientCount });
+		}
+		return remaining;
+	}
+
+	public synchronized int getRemainingCount() {
+		int remaining = patientCount;
+		for (Map.Entry<Integer, Integer> range : created.entrySet()) {
+			remaining -= range.getValue() - range.getKey();
+		}
+		return remaining;
+	}
+
+	/**
+	 * Records the patients from {@code from} (inclusive) to {@code to} (exclusive) in the saved checkpoint, in the
+	 * transaction creating them so that both are committed together. The saved checkpoint is locked until then, the
+	 * other workers record their batches after this one commits and so never overwrite it.
+	 *
+	 * @throws ModuleException if the saved checkpoint is gone or belongs to another run
+	 */
+	void record(final int from, final int to) {
+		GlobalPropertyRows.execute(new Work() {
+
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				String property = ReferenceDemoDataConstants.DEMO_PATIENT_CHECKPOINT;
+				String value = GlobalPropertyRows.readForUpdate(connection, property);
+				if (value == null || !StringUtils.substringBefore(value, ":").equals(String.valueOf(patientCount))) {
+					throw new ModuleException("The demo patient checkpoint was replaced during the run: " + value);
+				}
+				DemoPatientCheckpoint saved = new DemoPatientCheckpoint(patientCount);
+				saved.parse(value);
+				saved.add(from, to);
+				if (!GlobalPropertyRows.compareAndSet(connection, property, value, saved.toString())) {
+					throw new ModuleException("The demo patient checkpoint was changed during the run");
+				}
+			}
+		});
+	}
+
+	/**
+	 * Notes that the patients from {@code from} (inclusive) to {@code to} (exclusive), recorded with
+	 * {@link #record(int, int)}, have been committed.
+	 */
+	public synchronized void markCreated(int from, int to) {
+		add(from, to);
+	}
+
+	/**
+	 * Removes the checkpoint, once the run is complete or when there is no run to resume.
+	 */
+	public static void clear() {
+		Context.flushSession();
+		GlobalPropertyRows.execute(new Work() {
+
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				GlobalPropertyRows.delete(connection, ReferenceDemoDataConstants.DEMO_PATIENT_CHECKPOINT);
+			}
+		});
+	}
+
+	private void add(int from, int to) {
+		// merge with the ranges it overlaps or touches
+		Map.Entry<Integer, Integer> before = created.floorEntry(from);
+		if (before != null && before.getValue() >= from) {
+			from = before.getKey();
+			to = Math.max(to, before.getValue());
+		}
+		Iterator<Map.Entry<Integer, Integer>> after = created.tailMap(from, true).entrySet().iterator();
+		while (after.hasNext()) {
+			Map.Entry<Integer, Integer> range = after.next();
+			if (range.getKey() > to) {
+				break;
+			}
+			to = Math.max(to, range.getValue());
+			after.remove();
+		}
+		created.put(from, to);
+	}
+
+	/**
+	 * Splits ranges of patient indexes into {@code parts} slices with about the same number of patients each.
+	 *
+	 * @param ranges the ranges, as returned by {@link #getRemainingRanges()}
+	 * @param parts the number of slices
+	 * @return the ranges of each slice
+	 */
+	public static List<List<int[]>> split(List<int[]> ranges, int parts) {
+		long total = 0;
+		for (int[] range : ranges) {
+			total += range[1] - range[0];
+		}
+		List<List<int[]>> slices = new ArrayList<List<int[]>>(parts);
+		Iterator<int[]> it = ranges.iterator();
+		int[] current = it.hasNext() ? it.next().clone() : null;
+		for (int part = 0; part < parts; part++) {
+			List<int[]> slice = new ArrayList<int[]>();
+			long size = total * (part + 1) / parts - total * part / parts;
+			while (size > 0 && current != null) {
+				int take = (int) Math.min(size, current[1] - current[0]);
+				slice.add(new int[] { current[0], current[0] + take });
+				current[0] += take;
+				size -= take;
+				if (current[0] == current[1]) {
+					current = it.hasNext() ? it.next().clone() : null;
+				}
+			}
+			slices.add(slice);
+		}
+		return slices;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder().append(patientCount).append(':');
+		for (Map.Entry<Integer, Integer> range : created.entrySet()) {
+			if (sb.charAt(sb.length() - 1) != ':') {
+				sb.append(',');
+			}
+			sb.append(range.getKey()).append('-').append(range.getValue());
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,415 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.Location;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.PersonAddress;
+import org.openmrs.PersonName;
+import org.openmrs.Visit;
+import org.openmrs.VisitType;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.emrapi.EmrApiConstants;
+import org.openmrs.module.idgen.service.IdentifierSourceService;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Creates random demo patients along with their visits, encounters and observations.
+ * <p>
+ * A generator is not thread-safe, so every worker thread should use its own instance, the concept lookups go through
+ * the run's shared {@link DemoConceptCache}. Every patient is generated from its own random stream, derived from the run's seed and the patient's
+ * index, so a patient comes out the same no matter which thread or batch creates it.
+ */
+public class DemoPatientGenerator {
+	
+	protected Log log = LogFactory.getLog(getClass());
+	
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+	
+	/**
+	 * Names of the concepts the generator creates obs for, which must exist before any patient is created.
+	 */
+	public static final List<String> REQUIRED_CONCEPT_NAMES = Collections.unmodifiableList(Arrays.asList("Height (cm)",
+	    "Weight (kg)", "Temperature (C)", "Pulse", "Respiratory rate", "Systolic blood pressure",
+	    "Diastolic blood pressure", "Blood oxygen saturation", "Text of encounter note"));
+	
+	private final DemoIdentifierQueue identifiers;
+	
+	private final DemoDataReferenceData referenceData;
+	
+	private final DemoPatientRun run;
+	
+	private final DemoDataWriter writer;
+	
+	private final ConceptService conceptService;
+	
+	private SplittableRandom random;
+	
+	public DemoPatientGenerator(IdentifierSourceService iss, DemoDataReferenceData referenceData, DemoPatientRun run) {
+		this(iss, referenceData, run, run.getLoader() == DemoPatientRun.Loader.JDBC ? new JdbcDemoDataWriter(
+		        run.getIdAllocator()) : new ServiceDemoDataWriter(), Context.getConceptService());
+	}
+	
+	/**
+	 * Lets the benchmarks build patients without a database, with stub services and a writer that discards everything.
+	 */
+	DemoPatientGenerator(IdentifierSourceService iss, DemoDataReferenceData referenceData, DemoPatientRun run,
+	    DemoDataWriter writer, ConceptService conceptService) {
+		this.identifiers = new DemoIdentifierQueue(iss, referenceData.getPatientIdentifierType());
+		this.referenceData = referenceData;
+		this.run = run;
+		this.writer = new MeasuredDemoDataWriter(writer, run.getMetrics());
+		this.conceptService = conceptService;
+	}
+	
+	/**
+	 * Creates the demo patients with indexes from {@code fromIndex} (inclusive) to {@code toIndex} (exclusive) in the
+	 * current session. Patients are written in batches, each batch runs in a single transaction after which the
+	 * session is flushed and cleared. The identifiers for a batch are reserved before its transaction starts, and the
+	 * batch is recorded in the run's checkpoint in the same transaction. Returns early, between batches, when the run
+	 * is asked to stop.
+	 */
+	public void createDemoPatients(int fromIndex, int toIndex, final Location location) {
+		TransactionTemplate transactionTemplate = new TransactionTemplate(Context.getRegisteredComponent(
+		    "transactionManager", PlatformTransactionManager.class));
+		for (int batchStart = fromIndex; batchStart < toIndex; batchStart += run.getBatchSize()) {
+			if (run.isStopRequested()) {
+				return;
+			}
+			final int from = batchStart;
+			final int to = Math.min(batchStart + run.getBatchSize(), toIndex);
+			identifiers.reserve(to - from);
+			// only the patients of committed batches take part in the run's digest
+			final DemoDataDigest batchDigest = new DemoDataDigest(run.getReferenceDate());
+			try {
+				transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+					
+					@Override
+					protected void doInTransactionWithoutResult(TransactionStatus status) {
+						for (int i = from; i < to; i++) {
+							createDemoPatient(i, location, batchDigest);
+						}
+						writer.flush();
+						run.getCheckpoint().record(from, to);
+					}
+				});
+			}
+			catch (DemoPatientShards.ShardLostException e) {
+				// not a failure, the node that took the shard over creates these patients
+				throw e;
+			}
+			catch (RuntimeException e) {
+				run.getProgress().batchFailed(to - from);
+				throw e;
+			}
+			finally {
+				identifiers.discardUnused();
+			}
+			run.getDigest().add(batchDigest);
+			Context.clearSession();
+			run.getCheckpoint().markCreated(from, to);
+			run.getProgress().batchCreated(to - from);
+			run.renewLease();
+		}
+	}
+	
+	private void createDemoPatient(int index, Location location, DemoDataDigest digest) {
+		startPatient(index);
+	    Patient patient = createBasicDemoPatient(referenceData.getPatientIdentifierType(), location);
+		writer.savePatient(patient);
+	    DemoDataProfile profile = run.getProfile();
+	    boolean chronic = profile.getChronicPatientPercent() > 0 && randomBetween(1, 100) <= profile.getChronicPatientPercent();
+	    int visitCount = randomIn(chronic ? profile.getChronicVisitsPerPatient() : profile.getVisitsPerPatient());
+	    List<Visit> visits = new ArrayList<Visit>(visitCount);
+	    for (int i = 0; i < visitCount; i++) {
+	    	boolean shortVisit = i < (visitCount * profile.getShortVisitPercent() / 100.0);
+	    	Visit visit = createDemoVisit(patient, referenceData.getVisitTypes(), location, shortVisit);
+			writer.saveVisit(visit);
+			visits.add(visit);
+        }
+	    digest.add(patient, visits);
+    }
+
+	/**
+	 * Switches to the random stream of the patient with the given index.
+	 */
+	void startPatient(int index) {
+		random = new SplittableRandom(patientSeed(run.getSeed(), index));
+	}
+	
+	Patient createBasicDemoPatient(PatientIdentifierType patientIdentifierType, Location location) {
+		Patient patient = new Patient();
+		
+		PersonName pName = new PersonName();
+		String gender = randomArrayEntry(GENDERS);
+		boolean male = gender.equals("M");
+		pName.setGivenName(randomArrayEntry(male ? MALE_FIRST_NAMES : FEMALE_FIRST_NAMES));
+		pName.setFamilyName(randomArrayEntry(FAMILY_NAMES));
+		patient.addName(pName);
+		
+		PersonAddress pAddress = new PersonAddress();
+		DemoAddressPool addressPool = run.getAddressPool();
+		int addressIndex = randomArrayIndex(DemoAddressPool.SIZE);
+		pAddress.setAddress1(addressPool.getAddress1(addressIndex));
+		pAddress.setCityVillage(addressPool.getCityVillage(addressIndex));
+		pAddress.setStateProvince(addressPool.getStateProvince(addressIndex));
+		pAddress.setCountry(addressPool.getCountry(addressIndex));
+		pAddress.setPostalCode(randomSuffix(5));
+		patient.addAddress(pAddress);
+		
+		patient.setBirthdate(randomBirthdate());
+		patient.setBirthdateEstimated(false);
+		patient.setGender(gender);
+		
+		PatientIdentifier pa1 = new PatientIdentifier();
+		pa1.setIdentifier(identifiers.next());
+		pa1.setIdentifierType(patientIdentifierType);
+		pa1.setDateCreated(new Date());
+		pa1.setLocation(location);
+		patient.addIdentifier(pa1);
+
+		return patient;
+	}
+	
+	private static final int ADMISSION_DAYS_MIN = 1;
+	private static final int ADMISSION_DAYS_MAX = 3;
+	
+	Visit createDemoVisit(Patient patient, List<VisitType> visitTypes, Location location, boolean shortVisit) {
+		DemoDataProfile profile = run.getProfile();
+		DemoTimeline timeline = run.getTimeline();
+		// the times are local millis, see DemoTimeline
+		long visitStart = timeline.getReferenceMillis() - randomBetween(0, profile.getVisitDaysBack()) * DemoTimeline.DAY_MILLIS
+		        - 3 * DemoTimeline.HOUR_MILLIS;
+		if (!shortVisit) {
+			visitStart -= (ADMISSION_DAYS_MAX + 1) * DemoTimeline.DAY_MILLIS;	// just in case the start is today, back it up a few days.
+		}
+		Visit visit = new Visit(patient, randomArrayEntry(visitTypes), timeline.toDate(visitStart));
+		visit.setLocation(location);
+		int vitalsCount = randomIn(profile.getVitalsPerVisit());
+		for (int i = 0; i < vitalsCount; i++) {
+			long vitalsTime = visitStart + randomBetween(1, 60) * DemoTimeline.MINUTE_MILLIS;
+			visit.addEncounter(createDemoVitalsEncounter(patient, timeline.toDate(vitalsTime)));
+		}
+		long visitNoteTime = visitStart + randomBetween(60, 120) * DemoTimeline.MINUTE_MILLIS;
+		Date visitNoteDate = timeline.toDate(visitNoteTime);
+		visit.addEncounter(createVisitNote(patient, visitNoteDate, location));
+		if (shortVisit) {
+			visit.setStopDatetime(timeline.toDate(visitNoteTime + 30 * DemoTimeline.MINUTE_MILLIS));
+		} else {
+			// admit now and discharge a few days later
+			Location admitLocation = referenceData.getInpatientWard();
+			visit.addEncounter(createEncounter(DemoDataReferenceData.ADMISSION, patient, visitNoteDate, admitLocation));
+			Date dischargeDate = timeline.toDate(visitNoteTime + randomBetween(ADMISSION_DAYS_MIN, ADMISSION_DAYS_MAX)
+			        * DemoTimeline.DAY_MILLIS);
+			visit.addEncounter(createEncounter(DemoDataReferenceData.DISCHARGE, patient, dischargeDate, admitLocation));
+			visit.setStopDatetime(dischargeDate);
+		}
+		return visit;
+	}
+	
+	private Encounter createVisitNote(Patient patient, Date encounterTime, Location location) {
+		ConceptService cs = conceptService;
+	    Encounter visitNote = createEncounter(DemoDataReferenceData.VISIT_NOTE, patient, encounterTime, location);
+	    visitNote.setForm(referenceData.getVisitNoteForm());
+	    
+	    createTextObs("Text of encounter note"/*CIEL:162169*/, randomArrayEntry(RANDOM_TEXT), patient, visitNote, encounterTime, location, cs);
+
+	    // the first diagnosis is the primary one
+	    int diagnosisCount = randomIn(run.getProfile().getDiagnosesPerVisitNote());
+	    for (int i = 0; i < diagnosisCount; i++) {
+		    createDiagnosisObsGroup(i == 0, patient, visitNote, encounterTime, location, cs);
+	    }
+
+	    return visitNote;
+    }
+
+	private void createDiagnosisObsGroup(boolean primary, Patient patient, Encounter visitNote, Date encounterTime,
+                                    Location location, ConceptService cs) {
+		// The diagnosis concepts are resolved up front by their emrapi mappings, their names differ in case from the
+		// emrapi codes which matters on databases with case sensitive string comparison like PostgreSQL.
+		Obs obsGroup = new Obs(patient, referenceData.getDiagnosisConcept(DemoDataReferenceData.DIAGNOSIS_CONCEPT_SET),
+		        encounterTime, location);
+	    visitNote.addObs(obsGroup);
+		
+	    String certainty = flipACoin() ? DemoDataReferenceData.PRESUMED_DIAGNOSIS : DemoDataReferenceData.CONFIRMED_DIAGNOSIS;
+	    Obs obs1 = createCodedObs(referenceData.getDiagnosisConcept(EmrApiConstants.CONCEPT_CODE_DIAGNOSIS_CERTAINTY),
+	        referenceData.getDiagnosisConcept(certainty), patient, visitNote, encounterTime, location);
+	    
+	    // TODO 5% of diagnoses should be non-coded.
+	    DiagnosisConceptPool diagnosisPool = run.getDiagnosisPool();
+	    Concept diagnosis = cs.getConcept(diagnosisPool.getConceptId(randomArrayIndex(diagnosisPool.size())));
+	    Obs obs2 = createCodedObs(referenceData.getDiagnosisConcept(DemoDataReferenceData.CODED_DIAGNOSIS), diagnosis,
+	        patient, visitNote, encounterTime, location);
+	    
+	    String order = primary ? EmrApiConstants.CONCEPT_CODE_DIAGNOSIS_ORDER_PRIMARY : EmrApiConstants.CONCEPT_CODE_DIAGNOSIS_ORDER_SECONDARY;
+	    Obs obs3 = createCodedObs(referenceData.getDiagnosisConcept(EmrApiConstants.CONCEPT_CODE_DIAGNOSIS_ORDER),
+	        referenceData.getDiagnosisConcept(order), patient, visitNote, encounterTime, location);
+	    
+	    obsGroup.addGroupMember(obs1);
+	    obsGroup.addGroupMember(obs2);
+	    obsGroup.addGroupMember(obs3);
+	}
+
+	private Encounter createDemoVitalsEncounter(Patient patient, Date encounterTime) {
+		Location location = referenceData.getOutpatientClinic();
+		Encounter encounter = createEncounter(DemoDataReferenceData.VITALS, patient, encounterTime, location);
+	    encounter.setForm(referenceData.getVitalsForm());
+		createDemoVitalsObs(patient, encounter, encounterTime, location);
+		return encounter;
+	}
+	
+	private Encounter createEncounter(String encounterType, Patient patient, Date encounterTime, Location location) {
+		Encounter encounter = new Encounter();
+		encounter.setEncounterDatetime(encounterTime);
+		encounter.setEncounterType(referenceData.getEncounterType(encounterType));
+		encounter.setPatient(patient);
+		encounter.setLocation(location);
+		return encounter;
+	}
+	
+	private void createDemoVitalsObs(Patient patient, Encounter encounter, Date encounterTime, Location location) {
+		VitalSignBounds vitalSigns = referenceData.getVitalSigns();
+		int obsCount = randomIn(run.getProfile().getVitalsObsPerEncounter());
+		for (int i = 0; i < obsCount; i++) {
+			Obs obs = new Obs(patient, vitalSigns.getConcept(i), encounterTime, location);
+			obs.setValueNumeric((double) randomBetween(vitalSigns.getMin(i), vitalSigns.getMax(i)));
+			encounter.addObs(obs);
+		}
+	}
+	
+	private void createTextObs(String conceptName, String text, Patient patient, Encounter encounter, Date encounterTime,
+	                           Location location, ConceptService cs) {
+		Obs obs = createBasicObs(conceptName, patient, encounterTime, location, cs);
+		obs.setValueText(text);
+		encounter.addObs(obs);
+		
+	}
+	
+	Concept findConcept(String conceptName, ConceptService cs) {
+		Integer conceptId = run.getConceptCache().getIdByName(cs, conceptName);
+		return conceptId != null ? cs.getConcept(conceptId) : null;
+    }
+	
+	private Obs createCodedObs(Concept question, Concept answer, Patient patient, Encounter encounter, Date encounterTime,
+	                           Location location) {
+		Obs obs = new Obs(patient, question, encounterTime, location);
+		obs.setValueCoded(answer);
+		encounter.addObs(obs);
+		return obs;
+    }
+
+	private Obs createBasicObs(String conceptName, Patient patient, Date encounterTime, Location location, ConceptService cs) {
+		Concept concept = findConcept(conceptName, cs);
+		if (concept == null) {
+			log.warn("incorrect concept name? " + conceptName);
+		}
+		return new Obs(patient, concept, encounterTime, location);
+	}
+	
+	private static final int MIN_AGE = 2;
+	private static final int MAX_AGE = 90;
+	
+	private Date randomBirthdate() {
+		DemoTimeline timeline = run.getTimeline();
+		int year = randomBetween(timeline.getReferenceYear() - MAX_AGE, timeline.getReferenceYear() - MIN_AGE);
+		return timeline.toDate(timeline.dateMillis(year, randomBetween(1, 12), randomBetween(1, 28)));
+    }
+
+	/**
+	 * Derives the seed of a patient's random stream, the SplitMix64 finalizer makes sure that the streams of
+	 * neighbouring patients aren't correlated.
+	 */
+	static long patientSeed(long seed, int index) {
+		return mix64(seed + (index + 1L) * GOLDEN_GAMMA);
+	}
+	static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	int randomBetween(int min, int max) {
+	    return min + random.nextInt(max - min + 1);
+    }
+	private int randomIn(DemoDataProfile.Range range) {
+		return range.getMin() == range.getMax() ? range.getMin() : randomBetween(range.getMin(), range.getMax());
+	}
+	private int randomArrayIndex(int length) {
+		return random.nextInt(length);
+	}
+	String randomArrayEntry(String[] array) {
+		return array[randomArrayIndex(array.length)];
+	}
+	private <T> T randomArrayEntry(List<T> list) {
+		return list.get(randomArrayIndex(list.size()));
+	}
+	String randomSuffix() {
+		return randomSuffix(4);
+	}
+	private String randomSuffix(int digits) {
+		int bound = 1;
+		for (int i = 0; i < digits; i++) {
+			bound *= 10;
+		}
+		return new String(DemoAddressPool.format(random.nextInt(bound), new char[digits]));
+	}
+	private boolean flipACoin() {
+		return random.nextBoolean();
+	}
+
+	private static final String[] GENDERS = {"M", "F"};
+	
+	private static final String[] MALE_FIRST_NAMES = { "James", "John", "Robert", "Michael", "William", "David", "Richard",
+        "Joseph", "Charles", "Thomas", "Christopher", "Daniel", "Matthew", "Donald", "Anthony", "Paul", "Mark",
+        "George", "Steven", "Kenneth", "Andrew", "Edward", "Brian", "Joshua", "Kevin" };
+
+	private static final String[] FEMALE_FIRST_NAMES = { "Mary", "Patricia", "Elizabeth", "Jennifer", "Linda", "Barbara",
+        "Susan", "Margaret", "Jessica", "Dorothy", "Sarah", "Karen", "Nancy", "Betty", "Lisa", "Sandra", "Helen",
+        "Donna", "Ashley", "Kimberly", "Carol", "Michelle", "Amanda", "Emily", "Melissa" };
+
+	private static final String[] FAMILY_NAMES = { "Smith", "Johnson", "Williams", "Brown", "Jones", "Miller", "Davis",
+        "García", "Rodríguez", "Wilson", "Martínez", "Anderson", "Taylor", "Thomas", "Hernández", "Moore", "Martin",
+        "Jackson", "Thompson", "White", "López", "Lee", "González", "Harris", "Clark", "Lewis", "Robinson", "Walker",
+        "Pérez", "Hall", "Young", "Allen", "Sánchez", "Wright", "King", "Scott", "Green", "Baker", "Adams", "Nelson",
+        "Hill", "Ramírez", "Campbell", "Mitchell", "Roberts", "Carter", "Phillips", "Evans", "Turner", "Torres" };
+	
+	private static final String[] RANDOM_TEXT = {
+		"Lorem ipsum dolor sit amet", 
+		"consectetur adipisicing elit", 
+		"sed do eiusmod tempor incididunt", 
+		"ut labore et dolore magna aliqua",
+		"Ut enim ad minim veniam", 
+		"quis nostrud exercitation ullamco laboris",
+		"nisi ut aliquip ex ea commodo consequat.",
+		"Duis aute irure dolor in reprehenderit in voluptat",
+		"velit esse cillum dolore eu fugiat nulla pariatur.",
+		"Excepteur sint occaecat cupidatat non proident", 
+		"sunt in culpa qui officia deserunt",
+		"mollit anim id est laborum."};
+	
+}
@@ -0,0 +1,143 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Tracks how far a run of demo patient creation is and logs it every {@value #REPORT_INTERVAL_MILLIS} ms or every
+ * {@value #REPORT_INTERVAL_PATIENTS} patients, whichever comes first. The workers report their batches once they are
+ * committed, or failed, so the figures only move once per batch. Thread-safe.
+ */
+public class DemoPatientProgress {
+
+	private static final Log log = LogFactory.getLog(DemoPatientProgress.class);
+
+	static final long REPORT_INTERVAL_MILLIS = 10000;
+
+	static final int REPORT_INTERVAL_PATIENTS = 1000;
+
+	private final AtomicInteger totalCount;
+
+	private final int initialDoneCount;
+
+	private final long startedAt = System.currentTimeMillis();
+
+	private final AtomicInteger doneCount;
+
+	private final AtomicInteger errorCount = new AtomicInteger();
+
+	private final AtomicLong lastReportAt = new AtomicLong(startedAt);
+
+	private volatile int lastReportDoneCount;
+
+	private volatile double currentRate;
+
+	/**
+	 * @param totalCount the number of patients the run creates, including those created by previous runs, 0 when the
+	 *            run is split into shards and it grows as they are claimed
+	 * @param doneCount the number of patients previous runs already created
+	 */
+	public DemoPatientProgress(int totalCount, int doneCount) {
+		this.totalCount = new AtomicInteger(totalCount);
+		this.initialDoneCount = doneCount;
+		this.doneCount = new AtomicInteger(doneCount);
+		this.lastReportDoneCount = doneCount;
+	}
+
+	void batchCreated(int patientCount) {
+		int done = doneCount.addAndGet(patientCount);
+		reportIfDue(done);
+	}
+
+	void batchFailed(int patientCount) {
+		errorCount.addAndGet(patientCount);
+		reportIfDue(doneCount.get());
+	}
+
+	/**
+	 * Adds the patients of a shard claimed by this node to the total, or takes away those of a shard it lost.
+	 */
+	void addToTotal(int patientCount) {
+		totalCount.addAndGet(patientCount);
+	}
+
+	private void reportIfDue(int done) {
+		long now = System.currentTimeMillis();
+		long last = lastReportAt.get();
+		if (now - last < REPORT_INTERVAL_MILLIS && done - lastReportDoneCount < REPORT_INTERVAL_PATIENTS) {
+			return;
+		}
+		// only the worker that moves the report time forward logs
+		if (lastReportAt.compareAndSet(last, now)) {
+			if (now > last) {
+				currentRate = (done - lastReportDoneCount) * 1000.0 / (now - last);
+			}
+			lastReportDoneCount = done;
+			log.info(this);
+		}
+	}
+
+	public int getTotalCount() {
+		return totalCount.get();
+	}
+
+	public int getDoneCount() {
+		return doneCount.get();
+	}
+
+	/**
+	 * @return the number of patients in the batches that failed
+	 */
+	public int getErrorCount() {
+		return errorCount.get();
+	}
+
+	public long getStartedAt() {
+		return startedAt;
+	}
+
+	/**
+	 * @return the patients created per second since the previous report, or since the start until the first report
+	 */
+	public double getCurrentRate() {
+		if (lastReportDoneCount > initialDoneCount) {
+			return currentRate;
+		}
+		long elapsed = System.currentTimeMillis() - startedAt;
+		return elapsed > 0 ? (doneCount.get() - initialDoneCount) * 1000.0 / elapsed : 0;
+	}
+
+	/**
+	 * @return the estimated time left at the current rate in ms, -1 when there is no rate yet
+	 */
+	public long getEstimatedMillisLeft() {
+		double rate = getCurrentRate();
+		if (rate <= 0) {
+			return -1;
+		}
+		return (long) (Math.max(0, totalCount.get() - doneCount.get()) * 1000 / rate);
+	}
+
+	@Override
+	public String toString() {
+		int done = doneCount.get();
+		int totalCount = this.totalCount.get();
+		long millisLeft = getEstimatedMillisLeft();
+		return "Created " + done + "/" + totalCount + " demo patients ("
+		        + (totalCount > 0 ? done * 100 / totalCount : 100) + "%), "
+		        + String.format("%.1f", getCurrentRate()) + " patients/s, ETA "
+		        + (millisLeft < 0 ? "unknown" : (millisLeft / 1000) + " s") + ", " + errorCount + " errors";
+	}
+}
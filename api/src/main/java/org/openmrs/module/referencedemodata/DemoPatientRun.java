@@ -0,0 +1,182 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import org.joda.time.LocalDateTime;
+
+/**
+ * The settings and shared state of a demo patient generation run. A run is shared by all the generators taking part in
+ * it, so everything here is either immutable or thread-safe.
+ */
+public class DemoPatientRun {
+
+	private static final int CONCEPT_CACHE_SIZE = 10000;
+
+	public enum Status {
+		RUNNING, COMPLETED, STOPPED, FAILED
+	}
+
+	/**
+	 * How the patients are written, see {@link ServiceDemoDataWriter} and {@link JdbcDemoDataWriter}.
+	 */
+	public enum Loader {
+		SERVICE, JDBC
+	}
+
+	private final long seed;
+
+	private final LocalDateTime referenceDate;
+
+	private final DemoDataProfile profile;
+
+	private final int batchSize;
+
+	private final DiagnosisConceptPool diagnosisPool;
+
+	private final DemoDataDigest digest;
+
+	private final DemoPatientCheckpoint checkpoint;
+
+	private final Loader loader;
+
+	private final DemoDataMetrics metrics;
+
+	private final DemoTimeline timeline;
+
+	private final DemoPatientProgress progress;
+
+	private final DemoAddressPool addressPool = new DemoAddressPool();
+
+	private final DemoIdAllocator idAllocator = new DemoIdAllocator();
+
+	private final DemoConceptCache conceptCache = new DemoConceptCache(CONCEPT_CACHE_SIZE);
+
+	private volatile Status status = Status.RUNNING;
+
+	private volatile boolean stopRequested;
+
+	private volatile DemoDataLease lease;
+
+	/**
+	 * @param seed the base seed, each patient gets its own random stream derived from it and the patient's index
+	 * @param referenceDate the date and time the generated visits and birthdates are relative to
+	 * @param profile the shape of the generated data
+	 * @param batchSize the number of patients saved per transaction
+	 * @param diagnosisPool the concepts diagnoses are picked from
+	 * @param checkpoint where the created patients are recorded
+	 * @param loader how the patients are written
+	 * @param metrics where the counts and latencies of the writes are recorded
+	 */
+	public DemoPatientRun(long seed, LocalDateTime referenceDate, DemoDataProfile profile, int batchSize, DiagnosisConceptPool diagnosisPool,
+	    DemoPatientCheckpoint checkpoint, Loader loader, DemoDataMetrics metrics) {
+		this.seed = seed;
+		this.referenceDate = referenceDate;
+		this.profile = profile;
+		this.batchSize = Math.max(1, batchSize);
+		this.diagnosisPool = diagnosisPool;
+		this.digest = new DemoDataDigest(referenceDate);
+		this.checkpoint = checkpoint;
+		this.loader = loader;
+		this.metrics = metrics;
+		this.timeline = new DemoTimeline(referenceDate);
+		this.progress = new DemoPatientProgress(checkpoint.getPatientCount(), checkpoint.getPatientCount()
+		        - checkpoint.getRemainingCount());
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public LocalDateTime getReferenceDate() {
+		return referenceDate;
+	}
+
+	public DemoDataProfile getProfile() {
+		return profile;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public DiagnosisConceptPool getDiagnosisPool() {
+		return diagnosisPool;
+	}
+
+	public DemoDataDigest getDigest() {
+		return digest;
+	}
+
+	public DemoPatientCheckpoint getCheckpoint() {
+		return checkpoint;
+	}
+
+	public Loader getLoader() {
+		return loader;
+	}
+
+	public DemoDataMetrics getMetrics() {
+		return metrics;
+	}
+
+	public DemoConceptCache getConceptCache() {
+		return conceptCache;
+	}
+
+	public DemoPatientProgress getProgress() {
+		return progress;
+	}
+
+	DemoTimeline getTimeline() {
+		return timeline;
+	}
+
+	DemoAddressPool getAddressPool() {
+		return addressPool;
+	}
+
+	DemoIdAllocator getIdAllocator() {
+		return idAllocator;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	void setStatus(Status status) {
+		this.status = status;
+	}
+
+	void setLease(DemoDataLease lease) {
+		this.lease = lease;
+	}
+
+	/**
+	 * Renews the seeding lease of the run, if it has one, and asks the generators to stop when it was lost to another
+	 * node.
+	 */
+	void renewLease() {
+		DemoDataLease lease = this.lease;
+		if (lease != null && !lease.renewIfDue()) {
+			requestStop();
+		}
+	}
+
+	/**
+	 * Asks the generators to stop after their current batch, the remaining patients are created by the next run.
+	 */
+	public void requestStop() {
+		stopRequested = true;
+	}
+
+	public boolean isStopRequested() {
+		return stopRequested;
+	}
+}
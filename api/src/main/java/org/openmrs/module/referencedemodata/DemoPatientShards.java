@@ -0,0 +1,529 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.jdbc.Work;
+import org.joda.time.LocalDateTime;
+import org.openmrs.module.ModuleException;
+
+/**
+ * The work table of a demo patient run split across the nodes sharing a database. The patient indexes are split into
+ * fixed-size shards, which the nodes claim in order. The whole table is the single {@value #GLOBAL_PROPERTY} global
+ * property, {@code patientCount|shardSize|referenceDate|nextShard|claims}, so that every node generates its shards
+ * relative to the same reference date and its size doesn't grow with the number of shards:
+ * <ul>
+ * <li>{@code nextShard} is the first shard no node has claimed yet, the shards from there on are all still to do</li>
+ * <li>{@code claims} are the shards before it that aren't done, separated by commas, each as
+ * {@code shard:next:heartbeatMillis:owner}: the next patient to create, and the node working on it along with when it
+ * last committed a batch, no owner if none is</li>
+ * </ul>
+ * The shards before {@code nextShard} without a claim are done.
+ * <p>
+ * A node claims a shard that no other node is working on, or whose owner hasn't committed a batch for
+ * {@link #STALE_MILLIS}, or else the next shard, with a compare-and-set on the row. The progress of the shard is
+ * recorded in the transaction of every batch, so a shard that is claimed again resumes right after the last batch its
+ * owner committed. The row is locked from then until the batch commits, so the nodes' batches commit one at a time.
+ * A node also renews its claims from a heartbeat thread, see {@link #startHeartbeat(Executor)}, so that a batch that
+ * takes a while doesn't make its shard look stale. Since every patient is generated from its index, the combined
+ * dataset is the same however many nodes took part.
+ */
+class DemoPatientShards {
+
+	static final String GLOBAL_PROPERTY = "referencedemodata.demoPatientShards";
+
+	/**
+	 * How long a shard can go without a committed batch before another node takes it over.
+	 */
+	static final long STALE_MILLIS = DemoDataLease.LEASE_MILLIS;
+
+	private static final Log log = LogFactory.getLog(DemoPatientShards.class);
+
+	private final int patientCount;
+
+	private final int shardSize;
+
+	private final LocalDateTime referenceDate;
+
+	private final String owner;
+
+	/**
+	 * The shards this node claimed and is still working on.
+	 */
+	private final Set<Integer> held = Collections.synchronizedSet(new HashSet<Integer>());
+
+	private final CountDownLatch heartbeatStopped = new CountDownLatch(1);
+
+	DemoPatientShards(int patientCount, int shardSize, LocalDateTime referenceDate, String owner) {
+		this.patientCount = patientCount;
+		this.shardSize = shardSize;
+		this.referenceDate = referenceDate;
+		this.owner = owner;
+	}
+
+	/**
+	 * @param owner the node loading the shards, as it claims them
+	 * @return the sharded run in progress, null if there is none
+	 */
+	static DemoPatientShards load(String owner) {
+		final String[] value = new String[1];
+		GlobalPropertyRows.execute(new Work() {
+
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				value[0] = GlobalPropertyRows.read(connection, GLOBAL_PROPERTY);
+			}
+		});
+		if (StringUtils.isBlank(value[0])) {
+			return null;
+		}
+		Table table = Table.parse(value[0]);
+		return new DemoPatientShards(table.patientCount, table.shardSize, table.referenceDate, owner);
+	}
+
+	/**
+	 * Splits a run into shards. The first {@code createdCount} patients, e.g. those of earlier runs that are being
+	 * topped up, are recorded as done.
+	 *
+	 * @return the shards
+	 * @throws ModuleException if another node created a sharded run in the meantime
+	 */
+	static DemoPatientShards create(int patientCount, int createdCount, int shardSize, LocalDateTime referenceDate,
+	                                String owner) {
+		final Table table = new Table(patientCount, shardSize, referenceDate);
+		createdCount = Math.max(0, Math.min(createdCount, patientCount));
+		table.nextShard = createdCount / shardSize;
+		if (createdCount % shardSize != 0) {
+			// the rest of the shard the created patients end in is left for any node to claim
+			if (createdCount < patientCount) {
+				table.claims.put(table.nextShard, new Claim(createdCount, 0, ""));
+			}
+			table.nextShard++;
+		}
+		GlobalPropertyRows.execute(new Work() {
+
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				if (!GlobalPropertyRows.insert(connection, GLOBAL_PROPERTY, table.toString(),
+				    "The demo patient run split into shards across the nodes sharing the database")) {
+					throw new ModuleException("Another node already split a demo patient run into shards");
+				}
+			}
+		});
+		return new DemoPatientShards(patientCount, shardSize, referenceDate, owner);
+	}
+
+	int getPatientCount() {
+		return patientCount;
+	}
+
+	int getShardSize() {
+		return shardSize;
+	}
+
+	LocalDateTime getReferenceDate() {
+		return referenceDate;
+	}
+
+	/**
+	 * Claims the first shard that isn't done and isn't being worked on, taking over the claims gone stale, or else
+	 * the next shard no node claimed yet.
+	 *
+	 * @return the patients of the shard left to create as {from, to} with the end exclusive, null if there is no
+	 *         shard to claim
+	 */
+	synchronized int[] claim() {
+		final int[][] claimed = new int[1][];
+		GlobalPropertyRows.execute(new Work() {
+
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				String value = readForUpdate(connection);
+				Table table = Table.parse(value);
+				long now = System.currentTimeMillis();
+				Integer shard = null;
+				for (Map.Entry<Integer, Claim> claim : table.claims.entrySet()) {
+					String current = claim.getValue().owner;
+					if (StringUtils.isEmpty(current) || now - claim.getValue().heartbeat >= STALE_MILLIS) {
+						shard = claim.getKey();
+						break;
+					}
+				}
+				if (shard == null) {
+					if (table.nextShard >= table.getShardCount()) {
+						return;
+					}
+					shard = table.nextShard++;
+					table.claims.put(shard, new Claim(table.getStart(shard), 0, ""));
+				}
+				Claim claim = table.claims.get(shard);
+				if (claim.next > table.getStart(shard)) {
+					log.info("Resuming demo patient shard " + shard + ", " + (table.getEnd(shard) - claim.next)
+					        + " of its patients left to create");
+				}
+				table.claims.put(shard, new Claim(claim.next, now, owner));
+				update(connection, value, table);
+				claimed[0] = new int[] { claim.next, table.getEnd(shard) };
+				held.add(shard);
+			}
+		});
+		return claimed[0];
+	}
+
+	/**
+	 * Records the patients from {@code from} to {@code to} of a shard claimed by this node, in the transaction creating
+	 * them, which also shows that the node is still working on it. The shard is done once its last patient is
+	 * recorded. A node claiming a shard in the meantime waits for that transaction to end.
+	 *
+	 * @throws ShardLostException if another node took the shard over
+	 */
+	void recordProgress(final int from, final int to) {
+		final int shard = from / shardSize;
+		GlobalPropertyRows.execute(new Work() {
+
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				String value = readForUpdate(connection);
+				Table table = Table.parse(value);
+				Claim claim = table.claims.get(shard);
+				if (claim == null || !owner.equals(claim.owner) || claim.next != from) {
+					held.remove(shard);
+					throw new ShardLostException("Demo patient shard " + shard + " was taken over by another node: "
+					        + claim, from);
+				}
+				if (to < table.getEnd(shard)) {
+					table.claims.put(shard, new Claim(to, System.currentTimeMillis(), owner));
+				} else {
+					table.claims.remove(shard);
+					held.remove(shard);
+				}
+				update(connection, value, table);
+			}
+		});
+	}
+
+	/**
+	 * Renews the claims of this node from a thread of the executor, until {@link #release()} is called.
+	 */
+	void startHeartbeat(Executor executor) {
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					while (!heartbeatStopped.await(STALE_MILLIS / 5, TimeUnit.MILLISECONDS)) {
+						renewClaims();
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				catch (RuntimeException e) {
+					log.error("Stopped renewing the claims on the demo patient shards", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Moves the heartbeat of the shards this node is working on forward, and forgets those another node took over.
+	 */
+	void renewClaims() {
+		final List<Integer> shards;
+		synchronized (held) {
+			shards = new ArrayList<Integer>(held);
+		}
+		if (shards.isEmpty()) {
+			return;
+		}
+		GlobalPropertyRows.execute(new Work() {
+
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				String value = readForUpdate(connection);
+				Table table = Table.parse(value);
+				long now = System.currentTimeMillis();
+				for (Integer shard : shards) {
+					Claim claim = table.claims.get(shard);
+					if (claim != null && owner.equals(claim.owner)) {
+						table.claims.put(shard, new Claim(claim.next, now, owner));
+					} else {
+						held.remove(shard);
+					}
+				}
+				update(connection, value, table);
+			}
+		});
+	}
+
+	/**
+	 * Stops the heartbeat and releases the shards this node is still working on, e.g. because it was asked to stop, so
+	 * that the other nodes can claim them right away rather than once they are stale.
+	 */
+	void release() {
+		heartbeatStopped.countDown();
+		final List<Integer> shards;
+		synchronized (held) {
+			shards = new ArrayList<Integer>(held);
+			held.clear();
+		}
+		if (shards.isEmpty()) {
+			return;
+		}
+		try {
+			GlobalPropertyRows.execute(new Work() {
+
+				@Override
+				public void execute(Connection connection) throws SQLException {
+					String value = readForUpdate(connection);
+					Table table = Table.parse(value);
+					for (Integer shard : shards) {
+						Claim claim = table.claims.get(shard);
+						if (claim != null && owner.equals(claim.owner)) {
+							table.claims.put(shard, new Claim(claim.next, 0, ""));
+						}
+					}
+					update(connection, value, table);
+				}
+			});
+		}
+		catch (RuntimeException e) {
+			log.warn("Failed to release demo patient shards " + shards + ", they are taken over once they are stale", e);
+		}
+	}
+
+	/**
+	 * @return whether all the shards are done
+	 */
+	boolean isComplete() {
+		final boolean[] complete = { true };
+		GlobalPropertyRows.execute(new Work() {
+
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				String value = GlobalPropertyRows.read(connection, GLOBAL_PROPERTY);
+				if (StringUtils.isNotBlank(value)) {
+					Table table = Table.parse(value);
+					complete[0] = table.nextShard >= table.getShardCount() && table.claims.isEmpty();
+				}
+			}
+		});
+		return complete[0];
+	}
+
+	/**
+	 * Removes the run, once all its shards are done.
+	 */
+	void clear() {
+		GlobalPropertyRows.execute(new Work() {
+
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				GlobalPropertyRows.delete(connection, GLOBAL_PROPERTY);
+			}
+		});
+	}
+
+	/**
+	 * @return a checkpoint recording the committed batches in their shards rather than in the checkpoint global
+	 *         property, it has no patients of its own so that the run's progress only counts those of the shards this
+	 *         node claims, see {@link DemoPatientProgress#addToTotal(int)}
+	 */
+	DemoPatientCheckpoint newCheckpoint() {
+		return new DemoPatientCheckpoint(0) {
+
+			@Override
+			void record(int from, int to) {
+				recordProgress(from, to);
+			}
+
+			@Override
+			public void markCreated(int from, int to) {
+				// the shards keep track of them
+			}
+		};
+	}
+
+	/**
+	 * @return the number of patients of all the shards still to be created, by any node
+	 */
+	int getRemainingCount() {
+		final String[] value = new String[1];
+		GlobalPropertyRows.execute(new Work() {
+
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				value[0] = GlobalPropertyRows.read(connection, GLOBAL_PROPERTY);
+			}
+		});
+		return StringUtils.isBlank(value[0]) ? 0 : Table.parse(value[0]).getRemainingCount();
+	}
+
+	private static String readForUpdate(Connection connection) throws SQLException {
+		String value = GlobalPropertyRows.readForUpdate(connection, GLOBAL_PROPERTY);
+		if (StringUtils.isBlank(value)) {
+			throw new ModuleException("The demo patient shards were removed during the run");
+		}
+		return value;
+	}
+
+	/**
+	 * Saves the table read from {@code value}, whose row is locked.
+	 */
+	private static void update(Connection connection, String value, Table table) throws SQLException {
+		if (!GlobalPropertyRows.compareAndSet(connection, GLOBAL_PROPERTY, value, table.toString())) {
+			throw new ModuleException("The demo patient shards were changed while their row was locked");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return patientCount + " patients in shards of " + shardSize;
+	}
+
+	/**
+	 * Thrown when recording the progress of a shard that another node took over, the batch is rolled back and the node
+	 * that took it over creates its patients.
+	 */
+	static class ShardLostException extends ModuleException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+
+		ShardLostException(String message, int from) {
+			super(message);
+			this.from = from;
+		}
+
+		/**
+		 * @return the first patient of the shard this node didn't create
+		 */
+		int getFrom() {
+			return from;
+		}
+	}
+
+	/**
+	 * The value of the run's row.
+	 */
+	private static class Table {
+
+		private final int patientCount;
+
+		private final int shardSize;
+
+		private final LocalDateTime referenceDate;
+
+		private int nextShard;
+
+		/**
+		 * The claims by shard, in shard order.
+		 */
+		private final TreeMap<Integer, Claim> claims = new TreeMap<Integer, Claim>();
+
+		Table(int patientCount, int shardSize, LocalDateTime referenceDate) {
+			this.patientCount = patientCount;
+			this.shardSize = shardSize;
+			this.referenceDate = referenceDate;
+		}
+
+		static Table parse(String value) {
+			String[] fields = StringUtils.splitPreserveAllTokens(value.trim(), '|');
+			try {
+				Table table = new Table(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), new LocalDateTime(
+				        fields[2]));
+				table.nextShard = Integer.parseInt(fields[3]);
+				for (String claim : StringUtils.split(fields[4], ',')) {
+					String[] claimFields = StringUtils.splitPreserveAllTokens(claim, ":", 4);
+					table.claims.put(Integer.valueOf(claimFields[0]), new Claim(Integer.parseInt(claimFields[1]),
+					        Long.parseLong(claimFields[2]), claimFields[3]));
+				}
+				return table;
+			}
+			catch (RuntimeException e) {
+				throw new ModuleException("Invalid value for " + GLOBAL_PROPERTY + ": " + value, e);
+			}
+		}
+
+		int getShardCount() {
+			return (patientCount + shardSize - 1) / shardSize;
+		}
+
+		int getStart(int shard) {
+			return shard * shardSize;
+		}
+
+		int getEnd(int shard) {
+			return Math.min(getStart(shard) + shardSize, patientCount);
+		}
+
+		int getRemainingCount() {
+			int remaining = nextShard < getShardCount() ? patientCount - getStart(nextShard) : 0;
+			for (Map.Entry<Integer, Claim> claim : claims.entrySet()) {
+				remaining += getEnd(claim.getKey()) - claim.getValue().next;
+			}
+			return remaining;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder().append(patientCount).append('|').append(shardSize).append('|')
+			        .append(referenceDate).append('|').append(nextShard).append('|');
+			for (Iterator<Map.Entry<Integer, Claim>> it = claims.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<Integer, Claim> claim = it.next();
+				sb.append(claim.getKey()).append(':').append(claim.getValue());
+				if (it.hasNext()) {
+					sb.append(',');
+				}
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * A shard before the next one to claim that isn't done.
+	 */
+	private static class Claim {
+
+		private final int next;
+
+		private final long heartbeat;
+
+		private final String owner;
+
+		Claim(int next, long heartbeat, String owner) {
+			this.next = next;
+			this.heartbeat = heartbeat;
+			this.owner = owner;
+		}
+
+		@Override
+		public String toString() {
+			return next + ":" + heartbeat + ":" + owner;
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import java.util.Date;
+
+import org.joda.time.Chronology;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDateTime;
+import org.joda.time.chrono.ISOChronology;
+
+/**
+ * Date arithmetic for the generated data on plain longs. Times are handled as local millis, the milliseconds of the
+ * wall-clock time counted as if it were UTC, so that adding days and minutes to them works like it does on a
+ * {@link LocalDateTime}. They are converted to an instant in the default time zone only when a {@link Date} is needed
+ * for an entity. Immutable.
+ */
+final class DemoTimeline {
+
+	static final long MINUTE_MILLIS = 60L * 1000;
+
+	static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+
+	static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+	private static final Chronology LOCAL_CHRONOLOGY = ISOChronology.getInstanceUTC();
+
+	private final DateTimeZone zone = DateTimeZone.getDefault();
+
+	private final long referenceMillis;
+
+	private final int referenceYear;
+
+	DemoTimeline(LocalDateTime referenceDate) {
+		this.referenceMillis = referenceDate.toDateTime(DateTimeZone.UTC).getMillis();
+		this.referenceYear = referenceDate.getYear();
+	}
+
+	/**
+	 * @return the reference date of the run in local millis
+	 */
+	long getReferenceMillis() {
+		return referenceMillis;
+	}
+
+	int getReferenceYear() {
+		return referenceYear;
+	}
+
+	/**
+	 * @return the start of the given day in local millis
+	 */
+	long dateMillis(int year, int month, int day) {
+		return LOCAL_CHRONOLOGY.getDateTimeMillis(year, month, day, 0);
+	}
+
+	/**
+	 * @return the instant of the given local millis in the default time zone
+	 */
+	Date toDate(long localMillis) {
+		return new Date(zone.convertLocalToUTC(localMillis, false));
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.openmrs.Concept;
+import org.openmrs.ConceptClass;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.ModuleException;
+
+/**
+ * The ids of the concepts demo diagnoses are picked from. The pool is resolved once per run so that a diagnosis only
+ * loads the concept that was picked, rather than every diagnosis concept in the dictionary.
+ * <p>
+ * Instances are immutable and can be shared between worker threads.
+ */
+public final class DiagnosisConceptPool {
+
+	public static final String DIAGNOSIS_CONCEPT_CLASS = "Diagnosis";
+
+	private final int[] conceptIds;
+
+	DiagnosisConceptPool(int[] conceptIds) {
+		this.conceptIds = conceptIds;
+	}
+
+	/**
+	 * Loads the ids of all the non retired diagnosis concepts, in ascending order.
+	 *
+	 * @param maxSize the maximum number of concepts to keep, an evenly spread subset is kept when there are more; 0 or
+	 *            less keeps all of them
+	 * @return the pool
+	 * @throws ModuleException if there are no diagnosis concepts
+	 */
+	public static DiagnosisConceptPool load(int maxSize) {
+		ConceptService cs = Context.getConceptService();
+		ConceptClass diagnosisClass = cs.getConceptClassByName(DIAGNOSIS_CONCEPT_CLASS);
+		if (diagnosisClass == null) {
+			throw new ModuleException("Cannot create demo patients, the '" + DIAGNOSIS_CONCEPT_CLASS
+			        + "' concept class is missing");
+		}
+
+		List<Concept> diagnoses = cs.getConceptsByClass(diagnosisClass);
+		int[] conceptIds = new int[diagnoses.size()];
+		int size = 0;
+		for (Concept diagnosis : diagnoses) {
+			if (!diagnosis.isRetired()) {
+				conceptIds[size++] = diagnosis.getConceptId();
+			}
+		}
+		if (size == 0) {
+			throw new ModuleException("Cannot create demo patients, there are no '" + DIAGNOSIS_CONCEPT_CLASS
+			        + "' concepts");
+		}
+
+		conceptIds = Arrays.copyOf(conceptIds, size);
+		// the database doesn't guarantee any order
+		Arrays.sort(conceptIds);
+		return new DiagnosisConceptPool(cap(conceptIds, maxSize));
+	}
+
+	static int[] cap(int[] conceptIds, int maxSize) {
+		if (maxSize <= 0 || conceptIds.length <= maxSize) {
+			return conceptIds;
+		}
+		int[] capped = new int[maxSize];
+		for (int i = 0; i < maxSize; i++) {
+			capped[i] = conceptIds[(int) ((long) i * conceptIds.length / maxSize)];
+		}
+		return capped;
+	}
+
+	public int size() {
+		return conceptIds.length;
+	}
+
+	public int getConceptId(int index) {
+		return conceptIds[index];
+	}
+}
@@ -0,0 +1,160 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.UUID;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.jdbc.Work;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Reads and writes global property rows with plain JDBC, for the state that nodes sharing a database coordinate on.
+ * Updates are compare-and-set on the current value, so that of two nodes updating the same row only one wins, and
+ * bypass the services so that they don't go through the session's cache.
+ */
+final class GlobalPropertyRows {
+
+	private static final Log log = LogFactory.getLog(GlobalPropertyRows.class);
+
+	private GlobalPropertyRows() {
+	}
+
+	/**
+	 * Runs the work on the connection of the current session in a transaction of its own, or in the caller's.
+	 */
+	static void execute(final Work work) {
+		TransactionTemplate transactionTemplate = new TransactionTemplate(Context.getRegisteredComponent(
+		    "transactionManager", PlatformTransactionManager.class));
+		transactionTemplate.execute(new TransactionCallback<Object>() {
+
+			@Override
+			public Object doInTransaction(TransactionStatus status) {
+				Context.getRegisteredComponents(DbSessionFactory.class).get(0).getCurrentSession().doWork(work);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @return the value of the property, empty if it has none, null if there is no such property
+	 */
+	static String read(Connection connection, String property) throws SQLException {
+		return read(connection, property, "");
+	}
+
+	/**
+	 * Reads the property and locks its row until the current transaction ends, so that a read-modify-write of the row
+	 * waits for the one in progress.
+	 *
+	 * @return the value of the property, empty if it has none, null if there is no such property
+	 */
+	static String readForUpdate(Connection connection, String property) throws SQLException {
+		return read(connection, property, " for update");
+	}
+
+	private static String read(Connection connection, String property, String lock) throws SQLException {
+		PreparedStatement select = connection.prepareStatement(
+		    "select property_value from global_property where property = ?" + lock);
+		try {
+			select.setString(1, property);
+			ResultSet rs = select.executeQuery();
+			if (!rs.next()) {
+				return null;
+			}
+			return StringUtils.defaultString(rs.getString(1));
+		}
+		finally {
+			select.close();
+		}
+	}
+
+	/**
+	 * Creates the property. The insert runs within a savepoint that it is rolled back to when it fails, since on some
+	 * databases, like PostgreSQL, a failed statement aborts the whole transaction.
+	 *
+	 * @return false if the property already exists
+	 */
+	static boolean insert(Connection connection, String property, String value, String description)
+	        throws SQLException {
+		Savepoint savepoint = connection.setSavepoint();
+		try {
+			PreparedStatement insert = connection.prepareStatement(
+			    "insert into global_property (property, property_value, description, uuid) values (?, ?, ?, ?)");
+			try {
+				insert.setString(1, property);
+				insert.setString(2, value);
+				insert.setString(3, description);
+				insert.setString(4, UUID.randomUUID().toString());
+				insert.executeUpdate();
+			}
+			finally {
+				insert.close();
+			}
+		}
+		catch (SQLException e) {
+			// another node inserted it first
+			log.debug("Failed to create " + property, e);
+			connection.rollback(savepoint);
+			return false;
+		}
+		connection.releaseSavepoint(savepoint);
+		return true;
+	}
+
+	/**
+	 * Sets the value of the property if it still is {@code expected}, an empty value also matches no value.
+	 *
+	 * @return whether the value was set
+	 */
+	static boolean compareAndSet(Connection connection, String property, String expected, String value)
+	        throws SQLException {
+		PreparedStatement update = connection.prepareStatement(expected.isEmpty() ?
+		        "update global_property set property_value = ? where property = ? and (property_value is null or property_value = '')"
+		        : "update global_property set property_value = ? where property = ? and property_value = ?");
+		try {
+			update.setString(1, value);
+			update.setString(2, property);
+			if (!expected.isEmpty()) {
+				update.setString(3, expected);
+			}
+			return update.executeUpdate() == 1;
+		}
+		finally {
+			update.close();
+		}
+	}
+
+	/**
+	 * Deletes the property.
+	 */
+	static void delete(Connection connection, String property) throws SQLException {
+		PreparedStatement delete = connection.prepareStatement("delete from global_property where property = ?");
+		try {
+			delete.setString(1, property);
+			delete.executeUpdate();
+		}
+		finally {
+			delete.close();
+		}
+	}
+}
@@ -0,0 +1,293 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.hibernate.jdbc.Work;
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
+import org.openmrs.OpenmrsObject;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PersonAddress;
+import org.openmrs.PersonName;
+import org.openmrs.Visit;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.ModuleUtil;
+import org.openmrs.util.OpenmrsConstants;
+
+/**
+ * Writes the demo data straight to the database with JDBC batch inserts, bypassing the services, validators and
+ * Hibernate. The patients and visits are held until the end of the batch and then written table by table, each table
+ * with a single batched statement. With MySQL, set {@code rewriteBatchedStatements=true} on the connection url so that
+ * the driver turns those into multi-row inserts.
+ * <p>
+ * Encounters and obs are written along with their visit. Primary keys come from a {@link DemoIdAllocator} and uuids
+ * from the entities, so that the ids can be used as foreign keys before anything is written. Databases whose identity
+ * columns don't move past explicitly inserted ids, like PostgreSQL, are not supported. The rows bypass the search index
+ * too, so it has to be updated once the patients are written, see {@link SearchIndexCompatibility}.
+ */
+class JdbcDemoDataWriter implements DemoDataWriter {
+
+	private final DemoIdAllocator ids;
+
+	private final List<Patient> patients = new ArrayList<Patient>();
+
+	private final List<Visit> visits = new ArrayList<Visit>();
+
+	JdbcDemoDataWriter(DemoIdAllocator ids) {
+		this.ids = ids;
+	}
+
+	@Override
+	public void savePatient(Patient patient) {
+		patients.add(patient);
+	}
+
+	@Override
+	public void saveVisit(Visit visit) {
+		visits.add(visit);
+	}
+
+	@Override
+	public void flush() {
+		if (patients.isEmpty() && visits.isEmpty()) {
+			return;
+		}
+		// the connection of the current session takes part in the batch's transaction
+		Context.getRegisteredComponents(DbSessionFactory.class).get(0).getCurrentSession().doWork(new Work() {
+
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				write(connection);
+			}
+		});
+		patients.clear();
+		visits.clear();
+	}
+
+	private void write(Connection connection) throws SQLException {
+		Integer creator = Context.getAuthenticatedUser().getUserId();
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		boolean allergyStatus = ModuleUtil.matchRequiredVersions(OpenmrsConstants.OPENMRS_VERSION_SHORT, "2.*");
+		ids.refresh(connection);
+
+		// in foreign key order
+		BatchInsert person = new BatchInsert(connection, "person", "person_id", "gender", "birthdate",
+		        "birthdate_estimated", "dead", "deathdate_estimated", "creator", "date_created", "voided", "uuid");
+		BatchInsert personName = new BatchInsert(connection, "person_name", "person_name_id", "preferred", "person_id",
+		        "given_name", "family_name", "creator", "date_created", "voided", "uuid");
+		BatchInsert personAddress = new BatchInsert(connection, "person_address", "person_address_id", "preferred",
+		        "person_id", "address1", "city_village", "state_province", "country", "postal_code", "creator",
+		        "date_created", "voided", "uuid");
+		// the allergy status was added in platform 2.0
+		BatchInsert patient = allergyStatus ? new BatchInsert(connection, "patient", "patient_id", "creator",
+		        "date_created", "voided", "allergy_status") : new BatchInsert(connection, "patient", "patient_id", "creator",
+		        "date_created", "voided");
+		BatchInsert patientIdentifier = new BatchInsert(connection, "patient_identifier", "patient_identifier_id",
+		        "patient_id", "identifier", "identifier_type", "preferred", "location_id", "creator", "date_created",
+		        "voided", "uuid");
+		BatchInsert visit = new BatchInsert(connection, "visit", "visit_id", "patient_id", "visit_type_id",
+		        "date_started", "date_stopped", "location_id", "creator", "date_created", "voided", "uuid");
+		BatchInsert encounter = new BatchInsert(connection, "encounter", "encounter_id", "encounter_type", "patient_id",
+		        "location_id", "form_id", "encounter_datetime", "visit_id", "creator", "date_created", "voided", "uuid");
+		BatchInsert obs = new BatchInsert(connection, "obs", "obs_id", "person_id", "concept_id", "encounter_id",
+		        "obs_datetime", "location_id", "obs_group_id", "value_coded", "value_numeric", "value_text", "creator",
+		        "date_created", "voided", "uuid");
+		try {
+			for (Patient p : patients) {
+				p.setPatientId(ids.next(connection, "person", "person_id"));
+				person.add(p.getPatientId(), p.getGender(), toSqlDate(p.getBirthdate()), p.getBirthdateEstimated(),
+				    false, false, creator, now, false, p.getUuid());
+				for (PersonName name : p.getNames()) {
+					name.setPersonNameId(ids.next(connection, "person_name", "person_name_id"));
+					personName.add(name.getPersonNameId(), true, p.getPatientId(), name.getGivenName(),
+					    name.getFamilyName(), creator, now, false, name.getUuid());
+				}
+				for (PersonAddress address : p.getAddresses()) {
+					address.setPersonAddressId(ids.next(connection, "person_address", "person_address_id"));
+					personAddress.add(address.getPersonAddressId(), true, p.getPatientId(), address.getAddress1(),
+					    address.getCityVillage(), address.getStateProvince(), address.getCountry(),
+					    address.getPostalCode(), creator, now, false, address.getUuid());
+				}
+				if (allergyStatus) {
+					patient.add(p.getPatientId(), creator, now, false, "Unknown");
+				} else {
+					patient.add(p.getPatientId(), creator, now, false);
+				}
+				for (PatientIdentifier identifier : p.getIdentifiers()) {
+					identifier.setPatientIdentifierId(ids.next(connection, "patient_identifier", "patient_identifier_id"));
+					patientIdentifier.add(identifier.getPatientIdentifierId(), p.getPatientId(),
+					    identifier.getIdentifier(), id(identifier.getIdentifierType()), true,
+					    id(identifier.getLocation()), creator, now, false, identifier.getUuid());
+				}
+			}
+
+			for (Visit v : visits) {
+				v.setVisitId(ids.next(connection, "visit", "visit_id"));
+				visit.add(v.getVisitId(), v.getPatient().getPatientId(), id(v.getVisitType()),
+				    toTimestamp(v.getStartDatetime()), toTimestamp(v.getStopDatetime()), id(v.getLocation()), creator, now,
+				    false, v.getUuid());
+				for (Encounter e : v.getEncounters()) {
+					e.setEncounterId(ids.next(connection, "encounter", "encounter_id"));
+					encounter.add(e.getEncounterId(), id(e.getEncounterType()), e.getPatient().getPatientId(),
+					    id(e.getLocation()), id(e.getForm()), toTimestamp(e.getEncounterDatetime()), v.getVisitId(),
+					    creator, now, false, e.getUuid());
+					for (Obs o : e.getObsAtTopLevel(false)) {
+						addObs(connection, obs, o, e, null, creator, now);
+					}
+				}
+			}
+
+			person.execute();
+			personName.execute();
+			personAddress.execute();
+			patient.execute();
+			patientIdentifier.execute();
+			visit.execute();
+			encounter.execute();
+			obs.execute();
+		}
+		finally {
+			person.close();
+			personName.close();
+			personAddress.close();
+			patient.close();
+			patientIdentifier.close();
+			visit.close();
+			encounter.close();
+			obs.close();
+		}
+	}
+
+	/**
+	 * Adds the obs followed by its group members, if any, so that groups are inserted before their members.
+	 */
+	private void addObs(Connection connection, BatchInsert insert, Obs o, Encounter e, Integer groupId, Integer creator,
+	        Timestamp now) throws SQLException {
+		o.setObsId(ids.next(connection, "obs", "obs_id"));
+		insert.add(o.getObsId(), o.getPerson().getPersonId(), id(o.getConcept()), e.getEncounterId(),
+		    toTimestamp(o.getObsDatetime()), id(o.getLocation()), groupId, id(o.getValueCoded()), o.getValueNumeric(),
+		    o.getValueText(), creator, now, false, o.getUuid());
+		if (o.isObsGrouping()) {
+			for (Obs member : o.getGroupMembers(false)) {
+				addObs(connection, insert, member, e, o.getObsId(), creator, now);
+			}
+		}
+	}
+
+	private static Integer id(OpenmrsObject object) {
+		return object == null ? null : object.getId();
+	}
+
+	private static java.sql.Date toSqlDate(Date date) {
+		return date == null ? null : new java.sql.Date(date.getTime());
+	}
+
+	private static Timestamp toTimestamp(Date date) {
+		return date == null ? null : new Timestamp(date.getTime());
+	}
+
+	/**
+	 * A batched insert into one table.
+	 */
+	private static class BatchInsert {
+
+		private final Connection connection;
+
+		private final String table;
+
+		private final String[] columns;
+
+		private final String sql;
+
+		private final int columnCount;
+
+		private PreparedStatement statement;
+
+		private int[] columnTypes;
+
+		private int rowCount;
+
+		BatchInsert(Connection connection, String table, String... columns) {
+			this.connection = connection;
+			this.table = table;
+			this.columns = columns;
+			this.sql = "insert into " + table + " (" + StringUtils.join(columns, ", ") + ") values ("
+			        + StringUtils.repeat("?", ", ", columns.length) + ")";
+			this.columnCount = columns.length;
+		}
+
+		void add(Object... values) throws SQLException {
+			if (values.length != columnCount) {
+				throw new IllegalArgumentException("Expected " + columnCount + " values but got " + values.length);
+			}
+			if (statement == null) {
+				columnTypes = readColumnTypes();
+				statement = connection.prepareStatement(sql);
+			}
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] == null) {
+					statement.setNull(i + 1, columnTypes[i]);
+				} else {
+					statement.setObject(i + 1, values[i]);
+				}
+			}
+			statement.addBatch();
+			rowCount++;
+		}
+
+		/**
+		 * Reads the SQL types of the columns from an empty query, some drivers reject a null without the type of its
+		 * column.
+		 */
+		private int[] readColumnTypes() throws SQLException {
+			Statement query = connection.createStatement();
+			try {
+				ResultSet resultSet = query.executeQuery("select " + StringUtils.join(columns, ", ") + " from " + table
+				        + " where 1 = 0");
+				ResultSetMetaData metaData = resultSet.getMetaData();
+				int[] types = new int[columnCount];
+				for (int i = 0; i < columnCount; i++) {
+					types[i] = metaData.getColumnType(i + 1);
+				}
+				return types;
+			}
+			finally {
+				query.close();
+			}
+		}
+
+		void execute() throws SQLException {
+			if (rowCount > 0) {
+				statement.executeBatch();
+				rowCount = 0;
+			}
+		}
+
+		void close() throws SQLException {
+			if (statement != null) {
+				statement.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import org.openmrs.Encounter;
+import org.openmrs.Patient;
+import org.openmrs.Visit;
+import org.openmrs.module.referencedemodata.DemoDataMetrics.SaveCall;
+
+/**
+ * Records the latency of every call to another writer and counts the entities handed to it in the
+ * {@link DemoDataMetrics} of the run, the encounters and obs along with their visit.
+ */
+class MeasuredDemoDataWriter implements DemoDataWriter {
+
+	private final DemoDataWriter writer;
+
+	private final DemoDataMetrics metrics;
+
+	MeasuredDemoDataWriter(DemoDataWriter writer, DemoDataMetrics metrics) {
+		this.writer = writer;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void savePatient(Patient patient) {
+		long start = System.nanoTime();
+		writer.savePatient(patient);
+		metrics.getLatency(SaveCall.SAVE_PATIENT).record(System.nanoTime() - start);
+		metrics.patientWritten();
+	}
+
+	@Override
+	public void saveVisit(Visit visit) {
+		long start = System.nanoTime();
+		writer.saveVisit(visit);
+		metrics.getLatency(SaveCall.SAVE_VISIT).record(System.nanoTime() - start);
+		int obsCount = 0;
+		for (Encounter encounter : visit.getEncounters()) {
+			obsCount += encounter.getAllObs(true).size();
+		}
+		metrics.visitWritten(visit.getEncounters().size(), obsCount);
+	}
+
+	@Override
+	public void flush() {
+		long start = System.nanoTime();
+		writer.flush();
+		metrics.getLatency(SaveCall.FLUSH).record(System.nanoTime() - start);
+	}
+}
@@ -13,56 +13,50 @@
  */
 package org.openmrs.module.referencedemodata;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
-import java.util.WeakHashMap;
-
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.joda.time.LocalDate;
 import org.joda.time.LocalDateTime;
-import org.joda.time.Period;
-import org.openmrs.Concept;
-import org.openmrs.ConceptNumeric;
-import org.openmrs.Encounter;
 import org.openmrs.Form;
 import org.openmrs.GlobalProperty;
 import org.openmrs.Location;
-import org.openmrs.Obs;
-import org.openmrs.Patient;
-import org.openmrs.PatientIdentifier;
-import org.openmrs.PatientIdentifierType;
 import org.openmrs.Person;
-import org.openmrs.PersonAddress;
 import org.openmrs.PersonName;
 import org.openmrs.Provider;
 import org.openmrs.Role;
 import org.openmrs.User;
-import org.openmrs.Visit;
-import org.openmrs.VisitType;
 import org.openmrs.api.AdministrationService;
-import org.openmrs.api.ConceptService;
-import org.openmrs.api.EncounterService;
 import org.openmrs.api.FormService;
-import org.openmrs.api.ObsService;
-import org.openmrs.api.PatientService;
 import org.openmrs.api.PersonService;
 import org.openmrs.api.ProviderService;
 import org.openmrs.api.UserService;
-import org.openmrs.api.VisitService;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
 import org.openmrs.module.BaseModuleActivator;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.DaemonTokenAware;
 import org.openmrs.module.ModuleActivator;
 import org.openmrs.module.ModuleException;
 import org.openmrs.module.ModuleUtil;
-import org.openmrs.module.emrapi.EmrApiConstants;
 import org.openmrs.module.emrapi.utils.MetadataUtil;
 import org.openmrs.module.idgen.service.IdentifierSourceService;
 import org.openmrs.module.metadatadeploy.api.MetadataDeployService;
@@ -78,13 +72,29 @@ import org.openmrs.util.RoleConstants;
 /**
  * This class contains the logic that is run every time this module is either started or stopped.
  */
-public class ReferenceDemoDataActivator extends BaseModuleActivator {
+public class ReferenceDemoDataActivator extends BaseModuleActivator implements DaemonTokenAware {
 
 	protected Log log = LogFactory.getLog(getClass());
 	private IdentifierSourceService iss;	// So unit test can mock it.
-    private static Random ConstRand=new Random(0);
-    
-    private Map<String, Concept> cachedConcepts = new WeakHashMap<String, Concept>();
+	private Executor daemonExecutor;	// So unit test can run the daemon threads itself.
+	
+	private static final String PACKAGES_XML = "org/openmrs/module/referencedemodata/packages.xml";
+	
+	private static final Pattern METADATA_PACKAGE = Pattern.compile(
+	    "<filenameBase>\\s*(.+?)\\s*</filenameBase>.*?<version>\\s*(\\d+)\\s*</version>", Pattern.DOTALL);
+	
+	private static DaemonToken daemonToken;
+	
+	/**
+	 * How long stopping the module waits for the demo patient batches in progress to be committed.
+	 */
+	private static final long STOP_TIMEOUT_SECONDS = 60;
+	
+	private static volatile DemoPatientRun demoPatientRun;
+	
+	private static volatile DemoDataMetrics metrics;
+	
+	private static volatile CountDownLatch backgroundCreationFinished;
 
 	/**
 	 * @see ModuleActivator#contextRefreshed()
@@ -99,20 +109,82 @@ public class ReferenceDemoDataActivator extends BaseModuleActivator {
 	 * @should install the metadata package on startup
 	 * @should link the admin account to unknown provider
      * @should create a scheduler user and set the related global properties
+	 * @should skip the setup and demo patients while another node holds the seeding lease
+	 * @should create the same demo patients with several threads as with one
+	 * @should reject a demo data profile range too wide to draw numbers from
 	 */
 	@Override
     public void started() {
-		installMDSPackages();
-		//This should probably be removed once a test user is added to demo data
-		//See https://tickets.openmrs.org/browse/RA-184
-		linkAdminAccountToAProviderIfNecessary();
-		setRequiredGlobalProperties();
-		setupUsersAndProviders();
-        createSchedulerUserAndGPs();
-        createAppointmentTypes();
-        createDemoPatients();
-        
-        cachedConcepts.clear();
+		DemoDataMetrics metrics = new DemoDataMetrics();
+		ReferenceDemoDataActivator.metrics = metrics;
+		// when nodes sharing the database start together only one of them does the setup writes
+		DemoDataLease lease = new DemoDataLease(DemoDataLease.LEASE_MILLIS);
+		if (!lease.acquire(getSeedingLeaseWaitMillis())) {
+			log.warn("The demo data seeding lease is held by " + lease.getHolder() + ", skipping the setup and demo"
+			        + " patients, they are done on the next startup once the lease is released or expired");
+			return;
+		}
+		if (getDaemonExecutor() != null) {
+			lease.startHeartbeat(getDaemonExecutor());
+		}
+		try {
+			SetupStepLedger ledger = new SetupStepLedger(metrics);
+			if (ledger.shouldRunForInputs(SetupStepLedger.MDS_PACKAGES, getMetadataPackageChecksums())) {
+				installMDSPackages();
+				ledger.markDone(SetupStepLedger.MDS_PACKAGES);
+			}
+			if (!lease.renewIfDue()) {
+				log.warn("Lost the seeding lease, leaving the rest of the setup to the node that took it over");
+				return;
+			}
+			//This should probably be removed once a test user is added to demo data
+			//See https://tickets.openmrs.org/browse/RA-184
+			linkAdminAccountToAProviderIfNecessary();
+			if (ledger.shouldRun(SetupStepLedger.GLOBAL_PROPERTIES)) {
+				setRequiredGlobalProperties();
+				ledger.markDone(SetupStepLedger.GLOBAL_PROPERTIES);
+			}
+			if (ledger.shouldRun(SetupStepLedger.USERS_AND_PROVIDERS)) {
+				setupUsersAndProviders();
+				ledger.markDone(SetupStepLedger.USERS_AND_PROVIDERS);
+			}
+			if (ledger.shouldRun(SetupStepLedger.SCHEDULER_USER)) {
+				createSchedulerUserAndGPs();
+				ledger.markDone(SetupStepLedger.SCHEDULER_USER);
+			}
+			if (ledger.shouldRun(SetupStepLedger.APPOINTMENT_TYPES)) {
+				createAppointmentTypes();
+				ledger.markDone(SetupStepLedger.APPOINTMENT_TYPES);
+			}
+			if (ledger.getSkippedMillis() > 0) {
+				log.info("Skipping unchanged setup steps saved about " + ledger.getSkippedMillis() + " ms");
+			}
+			if (!lease.renewIfDue()) {
+				log.warn("Lost the seeding lease, leaving the demo patients to the node that took it over");
+				return;
+			}
+		}
+		catch (RuntimeException e) {
+			lease.release();
+			throw e;
+		}
+        startDemoPatientCreation(metrics, lease);
+	}
+	
+	/**
+	 * @see ModuleActivator#stopped()
+	 */
+	@Override
+	public void stopped() {
+		stopDemoPatientCreation();
+	}
+	
+	/**
+	 * @see DaemonTokenAware#setDaemonToken(DaemonToken)
+	 */
+	@Override
+	public void setDaemonToken(DaemonToken token) {
+		daemonToken = token;
 	}
 	
 	private void createAppointmentTypes() {
@@ -122,7 +194,7 @@ public class ReferenceDemoDataActivator extends BaseModuleActivator {
 	
 	private void installMDSPackages() {
 		try {
-			MetadataUtil.setupStandardMetadata(getClass().getClassLoader(), "org/openmrs/module/referencedemodata/packages.xml");
+			MetadataUtil.setupStandardMetadata(getClass().getClassLoader(), PACKAGES_XML);
 		}
 		catch (Exception e) {
 			throw new ModuleException("Failed to load reference demo data MDS packages", e);
@@ -131,6 +203,37 @@ public class ReferenceDemoDataActivator extends BaseModuleActivator {
 		log.info("Reference Demo Data Module started");
 	}
 	
+	/**
+	 * The checksums of packages.xml and of every package zip it refers to, so that the packages are only imported again
+	 * when one of them changed.
+	 */
+	private String[] getMetadataPackageChecksums() {
+		ClassLoader classLoader = getClass().getClassLoader();
+		String packages;
+		try {
+			InputStream in = classLoader.getResourceAsStream(PACKAGES_XML);
+			try {
+				packages = IOUtils.toString(in, "UTF-8");
+			}
+			finally {
+				IOUtils.closeQuietly(in);
+			}
+		}
+		catch (IOException e) {
+			throw new ModuleException("Failed to read " + PACKAGES_XML, e);
+		}
+		
+		List<String> checksums = new ArrayList<String>();
+		checksums.add(SetupStepLedger.resourceChecksum(classLoader, PACKAGES_XML));
+		// the same naming convention MetadataUtil uses to find the zips, without deserializing the whole file
+		Matcher matcher = METADATA_PACKAGE.matcher(packages);
+		while (matcher.find()) {
+			String zip = matcher.group(1) + "-" + matcher.group(2) + ".zip";
+			checksums.add(zip + "=" + SetupStepLedger.resourceChecksum(classLoader, zip));
+		}
+		return checksums.toArray(new String[checksums.size()]);
+	}
+	
 	private void linkAdminAccountToAProviderIfNecessary() {
 		
 		PrivilegeCompatibility privilegeCompatibility = Context.getRegisteredComponents(PrivilegeCompatibility.class).get(0);
@@ -243,6 +346,13 @@ public class ReferenceDemoDataActivator extends BaseModuleActivator {
 		//Add more GPs here
 		propertyValueMap.put("registrationcore.identifierSourceId", "1");
 		propertyValueMap.put(ReferenceDemoDataConstants.CREATE_DEMO_PATIENTS_ON_NEXT_STARTUP, "0");
+		propertyValueMap.put(ReferenceDemoDataConstants.DEMO_PATIENT_BATCH_SIZE, "1");
+		propertyValueMap.put(ReferenceDemoDataConstants.DIAGNOSIS_POOL_SIZE, "0");
+		propertyValueMap.put(ReferenceDemoDataConstants.DEMO_DATA_SEED, "0");
+		propertyValueMap.put(ReferenceDemoDataConstants.DEMO_PATIENT_LOADER, "service");
+		propertyValueMap.put(ReferenceDemoDataConstants.DEMO_DATA_PROFILE, DemoDataProfile.DEFAULT_PROFILE);
+		propertyValueMap.put(ReferenceDemoDataConstants.DEMO_PATIENT_TARGET, "0");
+		propertyValueMap.put(ReferenceDemoDataConstants.DEMO_PATIENT_SHARD_SIZE, "0");
 		
 		for (Map.Entry<String, String> entry : propertyValueMap.entrySet()) {
 			if (StringUtils.isBlank(as.getGlobalProperty(entry.getKey()))) {
@@ -347,8 +457,80 @@ public class ReferenceDemoDataActivator extends BaseModuleActivator {
         }
     }
 
+	/**
+	 * @return the metrics of the last startup of the module, null if it wasn't started yet
+	 */
+	public static DemoDataMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @return the demo patient run in progress, or the last one since the module was started, null if there was none
+	 */
+	public static DemoPatientRun getDemoPatientRun() {
+		return demoPatientRun;
+	}
+	
+	/**
+	 * Creates the demo patients, either right away or in a daemon thread when the
+	 * {@link ReferenceDemoDataConstants#CREATE_DEMO_PATIENTS_IN_BACKGROUND} runtime property is true, so that startup
+	 * doesn't wait for them. The seeding lease is released once they are created.
+	 */
+	private void startDemoPatientCreation(final DemoDataMetrics metrics, final DemoDataLease lease) {
+		if (!isCreatingDemoPatientsInBackground()) {
+			try {
+				createDemoPatients(metrics, lease);
+			}
+			finally {
+				lease.release();
+			}
+			return;
+		}
+		
+		final CountDownLatch finished = new CountDownLatch(1);
+		backgroundCreationFinished = finished;
+		getDaemonExecutor().execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				try {
+					createDemoPatients(metrics, lease);
+				}
+				catch (Throwable t) {
+					log.error("Failed to create demo patients in the background", t);
+				}
+				finally {
+					lease.release();
+					finished.countDown();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Asks a demo patient run in progress to stop and waits for its current batches, the rest of the patients are
+	 * created on the next startup.
+	 */
+	private void stopDemoPatientCreation() {
+		DemoPatientRun run = demoPatientRun;
+		if (run != null) {
+			run.requestStop();
+		}
+		CountDownLatch finished = backgroundCreationFinished;
+		if (finished != null) {
+			try {
+				if (!finished.await(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+					log.warn("Demo patient creation did not stop within " + STOP_TIMEOUT_SECONDS + " seconds");
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
     // TODO Move all this demo-patient stuff to a separate class.
-	private void createDemoPatients() {
+	private void createDemoPatients(DemoDataMetrics metrics, DemoDataLease lease) {
 		AdministrationService as = Context.getAdministrationService();
 
 		if ("false".equalsIgnoreCase(Context.getRuntimeProperties()
@@ -357,337 +539,380 @@ public class ReferenceDemoDataActivator extends BaseModuleActivator {
 		}
 
 		GlobalProperty gp = as.getGlobalPropertyObject(ReferenceDemoDataConstants.CREATE_DEMO_PATIENTS_ON_NEXT_STARTUP);
-		if (gp == null || (gp.getPropertyValue().equals("0"))) {
+		int target = getIntegerGlobalProperty(as, ReferenceDemoDataConstants.DEMO_PATIENT_TARGET, 0);
+		DemoPatientShards shards = DemoPatientShards.load(lease.getOwner());
+		if (shards == null && target <= 0 && (gp == null || (gp.getPropertyValue().equals("0")))) {
+			// a run that was interrupted right after resetting the global property leaves its checkpoint behind
+			DemoPatientCheckpoint.clear();
 			return;
 		}
+		
+		int patientCount;
+		int createdCount = 0;
+		if (shards != null) {
+			// another node split a run into shards, join it whatever was requested since
+			patientCount = shards.getPatientCount();
+			log.info("Joining the creation of " + shards);
+		} else if (target > 0) {
+			// the target takes precedence over the count, the patients a previous run committed are counted
+			int existingCount = countDemoPatients();
+			if (existingCount >= target) {
+				log.info("There are already " + existingCount + " demo patients, the target is " + target);
+				DemoPatientCheckpoint.clear();
+				return;
+			}
+			// patients are generated from their index, so the run carries on after the ones that are there
+			patientCount = target;
+			createdCount = existingCount;
+			log.info("Topping up " + existingCount + " demo patients to the target of " + target);
+		} else {
+			patientCount = Integer.parseInt(gp.getPropertyValue());
+		}
 		createVitalsForm();
-		OpenmrsUtil.applyLogLevel(getClass().getName(), OpenmrsConstants.LOG_LEVEL_INFO);	// force the "created demo patient" below to show up
+		OpenmrsUtil.applyLogLevel(DemoPatientProgress.class.getName(), OpenmrsConstants.LOG_LEVEL_INFO);	// force the progress reports to show up
+
+		// fails fast if any of the metadata the generator needs is missing
+		DemoDataReferenceData referenceData = DemoDataReferenceData.load(DemoPatientGenerator.REQUIRED_CONCEPT_NAMES);
+		DiagnosisConceptPool diagnosisPool = DiagnosisConceptPool.load(getIntegerGlobalProperty(as,
+		    ReferenceDemoDataConstants.DIAGNOSIS_POOL_SIZE, 0));
+		int batchSize = getIntegerGlobalProperty(as, ReferenceDemoDataConstants.DEMO_PATIENT_BATCH_SIZE, 1);
+		long seed = getLongGlobalProperty(as, ReferenceDemoDataConstants.DEMO_DATA_SEED, 0);
+		int shardSize = getIntegerGlobalProperty(as, ReferenceDemoDataConstants.DEMO_PATIENT_SHARD_SIZE, 0);
+		DemoPatientRun.Loader loader = getDemoPatientLoader(as);
+		if (loader == DemoPatientRun.Loader.JDBC && (shards != null || shardSize > 0)) {
+			// every node would count up the same primary keys from the same highest ids
+			throw new ModuleException("The jdbc demo patient loader can't create demo patients split into shards, set "
+			        + ReferenceDemoDataConstants.DEMO_PATIENT_LOADER + " to service or "
+			        + ReferenceDemoDataConstants.DEMO_PATIENT_SHARD_SIZE + " to 0");
+		}
+		if (loader == DemoPatientRun.Loader.JDBC && isCreatingDemoPatientsInBackground()) {
+			// the users and the other modules insert rows while the server is up, which the ids would collide with
+			throw new ModuleException("The jdbc demo patient loader can't create demo patients in the background, set "
+			        + ReferenceDemoDataConstants.DEMO_PATIENT_LOADER + " to service or the "
+			        + ReferenceDemoDataConstants.CREATE_DEMO_PATIENTS_IN_BACKGROUND + " runtime property to false");
+		}
+		if (shards == null && shardSize > 0) {
+			// coordinate: split the run into shards that every node, this one included, then claims
+			shards = DemoPatientShards.create(patientCount, createdCount, shardSize, getDemoDataReferenceDate(as),
+			    lease.getOwner());
+			resetCreateDemoPatientsOnNextStartup(as, gp);
+			DemoPatientCheckpoint.clear();
+			log.info("Split the creation of " + shards);
+		}
+		DemoPatientCheckpoint checkpoint;
+		LocalDateTime referenceDate;
+		if (shards != null) {
+			checkpoint = shards.newCheckpoint();
+			referenceDate = shards.getReferenceDate();
+			// the other nodes can join as soon as the setup is done
+			lease.release();
+		} else {
+			checkpoint = DemoPatientCheckpoint.load(patientCount, createdCount);
+			referenceDate = getDemoDataReferenceDate(as);
+		}
+		int remainingCount = shards != null ? shards.getRemainingCount() : checkpoint.getRemainingCount();
+		if (shards != null) {
+			log.info("Joining the creation of " + shards + ", " + remainingCount + " patients left to create");
+		} else if (remainingCount < patientCount - createdCount) {
+			log.info("Resuming the creation of " + patientCount + " demo patients, " + remainingCount + " left to create");
+		}
+		DemoPatientRun run = new DemoPatientRun(seed, referenceDate, DemoDataProfile.load(), batchSize, diagnosisPool,
+		        checkpoint, loader, metrics);
+		if (shards == null) {
+			run.setLease(lease);
+		}
+		demoPatientRun = run;
+		List<Location> rootLocations = new ArrayList<Location>(Context.getLocationService().getRootLocations(false));
+		Collections.sort(rootLocations, DemoDataReferenceData.BY_ID);
+		Location rootLocation = rootLocations.get(new SplittableRandom(seed).nextInt(rootLocations.size()));
 		
-		int patientCount = Integer.parseInt(gp.getPropertyValue());
-
-		PatientService ps = Context.getPatientService();
-		Location rootLocation = randomArrayEntry(Context.getLocationService().getRootLocations(false));
-		PatientIdentifierType patientIdentifierType = ps.getPatientIdentifierTypeByName(ReferenceMetadataConstants.OPENMRS_ID_NAME);
-		for (int i = 0; i < patientCount; i++) {
-			Patient patient = createDemoPatient(ps, patientIdentifierType, rootLocation);
-			log.info("created demo patient: " + patient.getPatientIdentifier() + " " + patient.getGivenName() + " " + patient.getFamilyName());
-			Context.flushSession();
-			Context.clearSession();
+		int threadCount = Math.min(getDemoPatientThreadCount(), remainingCount);
+		long start = System.currentTimeMillis();
+		if (shards != null && getDaemonExecutor() != null) {
+			shards.startHeartbeat(getDaemonExecutor());
 		}
-
-		// Set the global to zero so we won't create demo patients next time.
-		gp.setPropertyValue("0");
-		as.saveGlobalProperty(gp);
-    }
-
-	// A bit of a hack - see https://tickets.openmrs.org/browse/RA-264. 
-	private void createVitalsForm() {
-		FormService fs = Context.getFormService();
-		if (fs.getFormByUuid(ReferenceDemoDataConstants.VITALS_FORM_UUID) != null) {
+		try {
+			if (threadCount > 1 && getDaemonExecutor() != null) {
+				createDemoPatientsInParallel(remainingCount, threadCount, run, shards, rootLocation.getId());
+			} else {
+				DemoPatientGenerator generator = new DemoPatientGenerator(getIdentifierSourceService(), referenceData, run);
+				createDemoPatientRanges(generator, checkpoint.getRemainingRanges(), run, shards, rootLocation);
+			}
+		}
+		catch (RuntimeException e) {
+			run.setStatus(DemoPatientRun.Status.FAILED);
+			throw e;
+		}
+		finally {
+			if (shards != null) {
+				shards.release();
+			}
+			metrics.recordPhase(DemoDataMetrics.PATIENT_GENERATION, System.currentTimeMillis() - start, false);
+		}
+		if (loader == DemoPatientRun.Loader.JDBC) {
+			// the search index only sees what goes through Hibernate
+			Context.getRegisteredComponents(SearchIndexCompatibility.class).get(0).updatePatientSearchIndex();
+		}
+		if (run.isStopRequested()) {
+			run.setStatus(DemoPatientRun.Status.STOPPED);
+			log.info("Stopped after creating " + run.getDigest().getPatientCount() + " demo patients, "
+			        + (shards != null ? "the rest of the shards are" : checkpoint.getRemainingCount() + " patients are")
+			        + " left to create on the next startup");
 			return;
 		}
-		Form form = new Form();
-		form.setUuid(ReferenceDemoDataConstants.VITALS_FORM_UUID);
-		form.setName(ReferenceDemoDataConstants.VITALS_FORM_NAME);
-		form.setEncounterType(Context.getEncounterService().getEncounterTypeByUuid(ReferenceDemoDataConstants.VITALS_FORM_ENCOUNTERTYPE_UUID));
-		form.setVersion("1.0");
-		fs.saveForm(form);
-    }
+		if (shards != null) {
+			if (!shards.isComplete()) {
+				log.info("Created " + run.getDigest().getPatientCount() + " demo patients, the other nodes are still"
+				        + " creating the rest of the " + shards);
+				run.setStatus(DemoPatientRun.Status.COMPLETED);
+				return;
+			}
+			shards.clear();
+		}
+		log.info("Created " + run.getDigest().getPatientCount() + " demo patients with seed " + seed + ", profile "
+		        + run.getProfile() + " and reference date " + run.getReferenceDate() + ", dataset digest " + run.getDigest());
+		log.debug("Concept cache: " + run.getConceptCache());
 
-	private Patient createDemoPatient(PatientService ps, PatientIdentifierType patientIdentifierType, Location location) {
-	    Patient patient = createBasicDemoPatient(patientIdentifierType, location);
-		patient = ps.savePatient(patient);
-	    VisitService vs = Context.getVisitService();
-	    int visitCount = randomBetween(0, 10);
-	    for (int i = 0; i < visitCount; i++) {
-	    	boolean shortVisit = i < (visitCount * 0.75);
-	    	Visit visit = createDemoVisit(patient, vs.getAllVisitTypes(), location, shortVisit);
-			vs.saveVisit(visit);
-        }
-	    return patient;
+		resetCreateDemoPatientsOnNextStartup(as, gp);
+		DemoPatientCheckpoint.clear();
+		run.setStatus(DemoPatientRun.Status.COMPLETED);
     }
-
-	// Used by unit test
-    public void setIdentifierSourceService(IdentifierSourceService iss) {
-    	this.iss = iss;
-    }
-
-	private IdentifierSourceService getIdentifierSourceService() {
-		if (iss == null) {
-			iss = Context.getService(IdentifierSourceService.class);
+	
+	/**
+	 * Sets the global to zero so we won't create demo patients next time.
+	 */
+	private void resetCreateDemoPatientsOnNextStartup(AdministrationService as, GlobalProperty gp) {
+		if (gp != null && !gp.getPropertyValue().equals("0")) {
+			gp.setPropertyValue("0");
+			as.saveGlobalProperty(gp);
 		}
-		return iss;
 	}
-
-	private Patient createBasicDemoPatient(PatientIdentifierType patientIdentifierType, Location location) {
-		Patient patient = new Patient();
-		
-		PersonName pName = new PersonName();
-		String gender = randomArrayEntry(GENDERS);
-		boolean male = gender.equals("M");
-		pName.setGivenName(randomArrayEntry(male ? MALE_FIRST_NAMES : FEMALE_FIRST_NAMES));
-		pName.setFamilyName(randomArrayEntry(FAMILY_NAMES));
-		patient.addName(pName);
-		
-		PersonAddress pAddress = new PersonAddress();
-		String randomSuffix = randomSuffix();
-		pAddress.setAddress1("Address1" + randomSuffix);
-		pAddress.setCityVillage("City" + randomSuffix);
-		pAddress.setStateProvince("State" + randomSuffix);
-		pAddress.setCountry("Country" + randomSuffix);
-		pAddress.setPostalCode(randomSuffix(5));
-		patient.addAddress(pAddress);
-		
-		patient.setBirthdate(randomBirthdate());
-		patient.setBirthdateEstimated(false);
-		patient.setGender(gender);
-		
-		PatientIdentifier pa1 = new PatientIdentifier();
-		pa1.setIdentifier(getIdentifierSourceService().generateIdentifier(patientIdentifierType, "DemoData"));
-		pa1.setIdentifierType(patientIdentifierType);
-		pa1.setDateCreated(new Date());
-		pa1.setLocation(location);
-		patient.addIdentifier(pa1);
-
-		return patient;
+	
+	/**
+	 * Creates the patients of the ranges, or, when the run is split into shards, of the shards this node claims until
+	 * there are none left. A shard taken over by another node, because this one looked like it stopped working on it,
+	 * is left to that node.
+	 */
+	private void createDemoPatientRanges(DemoPatientGenerator generator, List<int[]> ranges, DemoPatientRun run,
+	                                     DemoPatientShards shards, Location location) {
+		if (shards == null) {
+			for (int[] range : ranges) {
+				generator.createDemoPatients(range[0], range[1], location);
+			}
+			return;
+		}
+		int[] shard;
+		while (!run.isStopRequested() && (shard = shards.claim()) != null) {
+			run.getProgress().addToTotal(shard[1] - shard[0]);
+			try {
+				generator.createDemoPatients(shard[0], shard[1], location);
+			}
+			catch (DemoPatientShards.ShardLostException e) {
+				run.getProgress().addToTotal(e.getFrom() - shard[1]);
+				log.warn(e.getMessage() + ", claiming another shard");
+			}
+		}
 	}
 	
-	private static final int ADMISSION_DAYS_MIN = 1;
-	private static final int ADMISSION_DAYS_MAX = 3;
+	/**
+	 * Counts the patients with an OpenMRS ID, which in a demo environment are the demo patients, in a single query.
+	 */
+	private int countDemoPatients() {
+		Number count = (Number) Context.getRegisteredComponents(DbSessionFactory.class).get(0).getCurrentSession()
+		        .createQuery("select count(distinct pi.patient) from PatientIdentifier pi where pi.voided = false"
+		                + " and pi.patient.voided = false and pi.identifierType.name = :name")
+		        .setParameter("name", ReferenceMetadataConstants.OPENMRS_ID_NAME).uniqueResult();
+		return count.intValue();
+	}
 	
-	private Visit createDemoVisit(Patient patient, List<VisitType> visitTypes, Location location, boolean shortVisit) {
-		LocalDateTime visitStart = LocalDateTime.now().minus(Period.days(randomBetween(0, 365*2)).withHours(3));	// past 2 years
-		if (!shortVisit) {
-			visitStart = visitStart.minus(Period.days(ADMISSION_DAYS_MAX+1));	// just in case the start is today, back it up a few days.
-		}
-		Visit visit = new Visit(patient, randomArrayEntry(visitTypes), visitStart.toDate());
-		visit.setLocation(location);
-		LocalDateTime vitalsTime = visitStart.plus(Period.minutes(randomBetween(1, 60)));
-		visit.addEncounter(createDemoVitalsEncounter(patient, vitalsTime.toDate()));
-		LocalDateTime visitNoteTime = visitStart.plus(Period.minutes(randomBetween(60, 120)));
-		visit.addEncounter(createVisitNote(patient, visitNoteTime.toDate(), location));
-		if (shortVisit) {
-			LocalDateTime visitEndTime = visitNoteTime.plus(Period.minutes(30));
-			visit.setStopDatetime(visitEndTime.toDate());
-		} else {
-			// admit now and discharge a few days later
-			Location admitLocation = Context.getLocationService().getLocation("Inpatient Ward");
-			visit.addEncounter(createEncounter("Admission", patient, visitNoteTime.toDate(), admitLocation));
-			LocalDateTime dischargeDateTime = visitNoteTime.plus(Period.days(randomBetween(ADMISSION_DAYS_MIN, ADMISSION_DAYS_MAX)));
-			visit.addEncounter(createEncounter("Discharge", patient, dischargeDateTime.toDate(), admitLocation));
-			visit.setStopDatetime(dischargeDateTime.toDate());
-		}
-		return visit;
+	private int getIntegerGlobalProperty(AdministrationService as, String property, int defaultValue) {
+		String value = as.getGlobalProperty(property);
+		if (StringUtils.isBlank(value)) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e) {
+			log.warn("Ignoring invalid value for " + property + ": " + value);
+			return defaultValue;
+		}
 	}
 	
-	private Encounter createVisitNote(Patient patient, Date encounterTime, Location location) {
-		ObsService os = Context.getObsService();
-		ConceptService cs = Context.getConceptService();
-	    Encounter visitNote = createEncounter("Visit Note", patient, encounterTime, location);
-	    visitNote.setForm(Context.getFormService().getForm("Visit Note"));
-	    Context.getEncounterService().saveEncounter(visitNote);
-	    
-	    createTextObs("Text of encounter note"/*CIEL:162169*/, randomArrayEntry(RANDOM_TEXT), patient, visitNote, encounterTime, location, os, cs);
-
-	    createDiagnosisObsGroup(true, patient, visitNote, encounterTime, location, os, cs);
-	    
-	    if (flipACoin()) {
-	    	// add a second diagnosis
-		    createDiagnosisObsGroup(false, patient, visitNote, encounterTime, location, os, cs);
-	    }
-
-	    return visitNote;
-    }
-
-	private void createDiagnosisObsGroup(boolean primary, Patient patient, Encounter visitNote, Date encounterTime,
-                                    Location location, ObsService os, ConceptService cs) {
-		Obs obsGroup = createBasicObs("Visit Diagnoses", patient, encounterTime, location, cs);
-	    visitNote.addObs(obsGroup);
-		
-		// Here we are going to make global property set to true. Reason, is while fetching concepts the case for concept name is different 
-		// from what we are sending to service call. This causes problem in PostgreSQL. This is not a problem in MySQL because For MySQL, 
-		// the collation is utf8_general_ci that is case insensitive so case does not matter but in other dbs like PostgreSQL it does.
-		boolean valueBefore = Context.getAdministrationService().isDatabaseStringComparisonCaseSensitive();
-		Context.getAdministrationService().setGlobalProperty(OpenmrsConstants.GP_CASE_SENSITIVE_DATABASE_STRING_COMPARISON,
-		    "true");
-		
-	    String certainty = flipACoin() ? "Presumed diagnosis" : "Confirmed diagnosis";
-	    Obs obs1 = createCodedObs(EmrApiConstants.CONCEPT_CODE_DIAGNOSIS_CERTAINTY, certainty, patient, visitNote, encounterTime, location, os, cs);
-	    
-	    // TODO 5% of diagnoses should be non-coded.
-	    List<Concept> allDiagnoses = cs.getConceptsByClass(cs.getConceptClassByName("Diagnosis"));
-	    Obs obs2 = createCodedObs("DIAGNOSIS LIST", randomArrayEntry(allDiagnoses), patient, visitNote, encounterTime, location, os, cs);
-	    
-	    String order = primary ? EmrApiConstants.CONCEPT_CODE_DIAGNOSIS_ORDER_PRIMARY : EmrApiConstants.CONCEPT_CODE_DIAGNOSIS_ORDER_SECONDARY;
-	    Obs obs3 = createCodedObs(EmrApiConstants.CONCEPT_CODE_DIAGNOSIS_ORDER, order, patient, visitNote, encounterTime, location, os, cs);
-	    
-	    obsGroup.addGroupMember(obs1);
-	    obsGroup.addGroupMember(obs2);
-	    obsGroup.addGroupMember(obs3);
-	    os.saveObs(obsGroup, "testing");
-		
-		// Restore the value of Global Property
-		Context.getAdministrationService().setGlobalProperty(OpenmrsConstants.GP_CASE_SENSITIVE_DATABASE_STRING_COMPARISON,
-		    String.valueOf(valueBefore));
+	private long getLongGlobalProperty(AdministrationService as, String property, long defaultValue) {
+		String value = as.getGlobalProperty(property);
+		if (StringUtils.isBlank(value)) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		}
+		catch (NumberFormatException e) {
+			log.warn("Ignoring invalid value for " + property + ": " + value);
+			return defaultValue;
+		}
 	}
-
-	private Encounter createDemoVitalsEncounter(Patient patient, Date encounterTime) {
-		Location location = Context.getLocationService().getLocation("Outpatient Clinic");
-		Encounter encounter = createEncounter("Vitals", patient, encounterTime, location);
-	    encounter.setForm(Context.getFormService().getForm("Vitals"));
-		createDemoVitalsObs(patient, encounter, encounterTime, location);
-		return encounter;
+	
+	/**
+	 * The date and time the demo data is generated relative to. Defaults to now, set it to a fixed date for runs that
+	 * should produce the same dataset.
+	 */
+	private LocalDateTime getDemoDataReferenceDate(AdministrationService as) {
+		String value = as.getGlobalProperty(ReferenceDemoDataConstants.DEMO_DATA_REFERENCE_DATE);
+		if (StringUtils.isNotBlank(value)) {
+			try {
+				return new LocalDateTime(value.trim());
+			}
+			catch (IllegalArgumentException e) {
+				log.warn("Ignoring invalid value for " + ReferenceDemoDataConstants.DEMO_DATA_REFERENCE_DATE + ": " + value);
+			}
+		}
+		return LocalDateTime.now();
 	}
 	
-	private Encounter createEncounter(String encounterType, Patient patient, Date encounterTime, Location location) {
-		EncounterService es = Context.getEncounterService();
-		Encounter encounter = new Encounter();
-		encounter.setEncounterDatetime(encounterTime);
-		encounter.setEncounterType(es.getEncounterType(encounterType));
-		encounter.setPatient(patient);
-		encounter.setLocation(location);
-		es.saveEncounter(encounter);
-		return encounter;
+	private boolean isCreatingDemoPatientsInBackground() {
+		return getDaemonExecutor() != null && "true".equalsIgnoreCase(Context.getRuntimeProperties().getProperty(
+		    ReferenceDemoDataConstants.CREATE_DEMO_PATIENTS_IN_BACKGROUND, "false").trim());
 	}
 	
-	private void createDemoVitalsObs(Patient patient, Encounter encounter, Date encounterTime, Location location) {
-		ObsService os = Context.getObsService();
-		ConceptService cs = Context.getConceptService();
-        createNumericObs("Height (cm)", 10, 228, patient, encounter, encounterTime, location, os, cs);
-        createNumericObs("Weight (kg)", 1, 250, patient, encounter, encounterTime, location, os, cs);
-        createNumericObs("Temperature (C)", 25, 43, patient, encounter, encounterTime, location, os, cs);
-        createNumericObs("Pulse", 0, 230, patient, encounter, encounterTime, location, os, cs);
-        createNumericObs("Respiratory rate", 5, 100, patient, encounter, encounterTime, location, os, cs);
-		createNumericObs("Systolic blood pressure", 0, 250, patient, encounter, encounterTime, location, os, cs);
-		createNumericObs("Diastolic blood pressure", 0, 150, patient, encounter, encounterTime, location, os, cs);
-        createNumericObs("Blood oxygen saturation", 0, 100, patient, encounter, encounterTime, location, os, cs);
+	private DemoPatientRun.Loader getDemoPatientLoader(AdministrationService as) {
+		String value = as.getGlobalProperty(ReferenceDemoDataConstants.DEMO_PATIENT_LOADER);
+		if (StringUtils.isNotBlank(value)) {
+			try {
+				return DemoPatientRun.Loader.valueOf(value.trim().toUpperCase());
+			}
+			catch (IllegalArgumentException e) {
+				log.warn("Ignoring invalid value for " + ReferenceDemoDataConstants.DEMO_PATIENT_LOADER + ": " + value);
+			}
+		}
+		return DemoPatientRun.Loader.SERVICE;
 	}
-
-	private void createNumericObs(String conceptName, int min, int max, Patient patient, Encounter encounter, Date encounterTime, Location location,
-                                  ObsService os, ConceptService cs) {
-		Obs obs = createBasicObs(conceptName, patient, encounterTime, location, cs);
-		
-		Concept concept = obs.getConcept();
-		if (concept != null) {
-			ConceptNumeric conceptNumeric = cs.getConceptNumeric(concept.getConceptId());
-			if (conceptNumeric.getHiAbsolute() != null) {
-				max = conceptNumeric.getHiAbsolute().intValue();
+	
+	/**
+	 * How long startup waits for another node to finish the setup before skipping it. Defaults to not waiting, so that
+	 * the lease never holds up the startup of a node.
+	 */
+	private long getSeedingLeaseWaitMillis() {
+		String seconds = Context.getRuntimeProperties().getProperty(ReferenceDemoDataConstants.SEEDING_LEASE_WAIT_SECONDS);
+		if (StringUtils.isNotBlank(seconds)) {
+			try {
+				return Math.max(0, Long.parseLong(seconds.trim())) * 1000;
 			}
-			if (conceptNumeric.getLowAbsolute() != null) {
-				min = conceptNumeric.getLowAbsolute().intValue();
+			catch (NumberFormatException e) {
+				log.warn("Ignoring invalid value for " + ReferenceDemoDataConstants.SEEDING_LEASE_WAIT_SECONDS + ": "
+				        + seconds);
 			}
 		}
-		
-		obs.setValueNumeric((double) randomBetween(min, max));
-		encounter.addObs(obs);
-		os.saveObs(obs, null);
-		
-    }
+		return 0;
+	}
 	
-	private void createTextObs(String conceptName, String text, Patient patient, Encounter encounter, Date encounterTime,
-	                           Location location, ObsService os, ConceptService cs) {
-		Obs obs = createBasicObs(conceptName, patient, encounterTime, location, cs);
-		obs.setValueText(text);
-		encounter.addObs(obs);
-		os.saveObs(obs, null);
-		
+	private int getDemoPatientThreadCount() {
+		String threads = Context.getRuntimeProperties().getProperty(ReferenceDemoDataConstants.DEMO_PATIENT_THREADS, "1");
+		try {
+			return Math.max(1, Integer.parseInt(threads.trim()));
+		}
+		catch (NumberFormatException e) {
+			log.warn("Ignoring invalid value for " + ReferenceDemoDataConstants.DEMO_PATIENT_THREADS + ": " + threads);
+			return 1;
+		}
 	}
 	
-	private Obs createCodedObs(String conceptName, String codedConceptName, Patient patient, Encounter encounter, Date encounterTime,
-	                           Location location, ObsService os, ConceptService cs) {
-		return createCodedObs(conceptName, findConcept(codedConceptName, cs), patient, encounter, encounterTime, location, os, cs);
+	/**
+	 * Splits the remaining patients into one slice of about the same size per worker, each worker runs as a daemon
+	 * thread with its own session and generator. When the run is split into shards, the workers claim shards instead.
+	 * Blocks until all the workers are done.
+	 */
+	private void createDemoPatientsInParallel(int remainingCount, int threadCount, final DemoPatientRun run,
+	                                          final DemoPatientShards shards, final Integer locationId) {
+		log.info("Creating " + remainingCount + " demo patients using " + threadCount + " threads");
+		final IdentifierSourceService identifierSourceService = getIdentifierSourceService();
+		final CountDownLatch finished = new CountDownLatch(threadCount);
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<List<int[]>> slices = shards != null ? Collections.nCopies(threadCount, Collections.<int[]> emptyList())
+		        : DemoPatientCheckpoint.split(run.getCheckpoint().getRemainingRanges(), threadCount);
+		for (final List<int[]> slice : slices) {
+			getDaemonExecutor().execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						// entities can't be shared between sessions, so every worker loads its own copies
+						DemoDataReferenceData referenceData = DemoDataReferenceData
+						        .load(DemoPatientGenerator.REQUIRED_CONCEPT_NAMES);
+						Location location = Context.getLocationService().getLocation(locationId);
+						DemoPatientGenerator generator = new DemoPatientGenerator(identifierSourceService, referenceData, run);
+						createDemoPatientRanges(generator, slice, run, shards, location);
+					}
+					catch (Throwable t) {
+						log.error("Failed to create demo patients" + (slice.isEmpty() ? "" : " " + slice.get(0)[0] + " to "
+						        + (slice.get(slice.size() - 1)[1] - 1)), t);
+						failures.add(t);
+					}
+					finally {
+						finished.countDown();
+					}
+				}
+			});
+		}
+		
+		try {
+			finished.await();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ModuleException("Interrupted while waiting for the demo patients to be created", e);
+		}
+		if (!failures.isEmpty()) {
+			throw new ModuleException("Failed to create demo patients", failures.get(0));
+		}
 	}
 
-	private Concept findConcept(String conceptName, ConceptService cs) {
-		if (cachedConcepts.containsKey(conceptName)) {
-			return cachedConcepts.get(conceptName);
-		} else {
-			Concept concept = cs.getConcept(conceptName);
-			cachedConcepts.put(conceptName, concept);
-			return concept;
+	// A bit of a hack - see https://tickets.openmrs.org/browse/RA-264. 
+	private void createVitalsForm() {
+		FormService fs = Context.getFormService();
+		if (fs.getFormByUuid(ReferenceDemoDataConstants.VITALS_FORM_UUID) != null) {
+			return;
 		}
-    }
-	
-	private Obs createCodedObs(String conceptName, Concept concept, Patient patient, Encounter encounter,
-                               Date encounterTime, Location location, ObsService os, ConceptService cs) {
-		Obs obs = createBasicObs(conceptName, patient, encounterTime, location, cs);
-		obs.setValueCoded(concept);
-		encounter.addObs(obs);
-		os.saveObs(obs, null);
-		return obs;
+		Form form = new Form();
+		form.setUuid(ReferenceDemoDataConstants.VITALS_FORM_UUID);
+		form.setName(ReferenceDemoDataConstants.VITALS_FORM_NAME);
+		form.setEncounterType(Context.getEncounterService().getEncounterTypeByUuid(ReferenceDemoDataConstants.VITALS_FORM_ENCOUNTERTYPE_UUID));
+		form.setVersion("1.0");
+		fs.saveForm(form);
     }
 
-	private Obs createBasicObs(String conceptName, Patient patient, Date encounterTime, Location location, ConceptService cs) {
-		Concept concept = findConcept(conceptName, cs);
-		if (concept == null) {
-			log.warn("incorrect concept name? " + conceptName);
-		}
-		return new Obs(patient, concept, encounterTime, location);
-	}
-	
-	private static final int MIN_AGE = 2;
-	private static final int MAX_AGE = 90;
-	
-	private Date randomBirthdate() {
-		LocalDate now = LocalDate.now();
-		LocalDate joda = new LocalDate(randomBetween(now.getYear() - MAX_AGE, now.getYear() - MIN_AGE), randomBetween(1,12), randomBetween(1, 28));
-	    return joda.toDate();
+	// Used by unit test
+    public void setIdentifierSourceService(IdentifierSourceService iss) {
+    	this.iss = iss;
     }
 
-	static private int randomBetween(int min, int max) {
-	    return min + (int) (ConstRand.nextDouble() * (max-min+1));
-    }
-	static int randomArrayIndex(int length) {
-		return (int) (ConstRand.nextDouble() * length);
-	}
-	static int randomArrayIndex(String[] array) {
-		return randomArrayIndex(array.length);
-	}
-	static String randomArrayEntry(String[] array) {
-		return array[randomArrayIndex(array)];
-	}
-	static <T> T randomArrayEntry(List<T> list) {
-		return list.get(randomArrayIndex(list.size()));
-	}
-	static String randomSuffix() {
-		return randomSuffix(4);
+	// Used by unit test
+	public void setDaemonExecutor(Executor daemonExecutor) {
+		this.daemonExecutor = daemonExecutor;
 	}
-	static String randomSuffix(int digits) {
-		// Last n digits of the current time.
-		return StringUtils.right(String.valueOf(System.currentTimeMillis()), digits);
+
+	/**
+	 * @return runs tasks in daemon threads, with a session of their own, null when the module wasn't given a daemon
+	 *         token
+	 */
+	private Executor getDaemonExecutor() {
+		if (daemonExecutor == null && daemonToken != null) {
+			return new Executor() {
+
+				@Override
+				public void execute(Runnable task) {
+					Daemon.runInDaemonThread(task, daemonToken);
+				}
+			};
+		}
+		return daemonExecutor;
 	}
-	static boolean flipACoin() {
-		return randomBetween(0,1) == 0;
+
+	private IdentifierSourceService getIdentifierSourceService() {
+		if (iss == null) {
+			iss = Context.getService(IdentifierSourceService.class);
+		}
+		return iss;
 	}
 
-	private static final String[] GENDERS = {"M", "F"};
-	
-	private static final String[] MALE_FIRST_NAMES = { "James", "John", "Robert", "Michael", "William", "David", "Richard",
-        "Joseph", "Charles", "Thomas", "Christopher", "Daniel", "Matthew", "Donald", "Anthony", "Paul", "Mark",
-        "George", "Steven", "Kenneth", "Andrew", "Edward", "Brian", "Joshua", "Kevin" };
-
-	private static final String[] FEMALE_FIRST_NAMES = { "Mary", "Patricia", "Elizabeth", "Jennifer", "Linda", "Barbara",
-        "Susan", "Margaret", "Jessica", "Dorothy", "Sarah", "Karen", "Nancy", "Betty", "Lisa", "Sandra", "Helen",
-        "Donna", "Ashley", "Kimberly", "Carol", "Michelle", "Amanda", "Emily", "Melissa" };
-
-	private static final String[] FAMILY_NAMES = { "Smith", "Johnson", "Williams", "Brown", "Jones", "Miller", "Davis",
-        "García", "Rodríguez", "Wilson", "Martínez", "Anderson", "Taylor", "Thomas", "Hernández", "Moore", "Martin",
-        "Jackson", "Thompson", "White", "López", "Lee", "González", "Harris", "Clark", "Lewis", "Robinson", "Walker",
-        "Pérez", "Hall", "Young", "Allen", "Sánchez", "Wright", "King", "Scott", "Green", "Baker", "Adams", "Nelson",
-        "Hill", "Ramírez", "Campbell", "Mitchell", "Roberts", "Carter", "Phillips", "Evans", "Turner", "Torres" };
-	
-	private static final String[] RANDOM_TEXT = {
-		"Lorem ipsum dolor sit amet", 
-		"consectetur adipisicing elit", 
-		"sed do eiusmod tempor incididunt", 
-		"ut labore et dolore magna aliqua",
-		"Ut enim ad minim veniam", 
-		"quis nostrud exercitation ullamco laboris",
-		"nisi ut aliquip ex ea commodo consequat.",
-		"Duis aute irure dolor in reprehenderit in voluptat",
-		"velit esse cillum dolore eu fugiat nulla pariatur.",
-		"Excepteur sint occaecat cupidatat non proident", 
-		"sunt in culpa qui officia deserunt",
-		"mollit anim id est laborum."};
-	
 }
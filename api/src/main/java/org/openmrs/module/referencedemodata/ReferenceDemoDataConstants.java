@@ -15,6 +15,8 @@ package org.openmrs.module.referencedemodata;
 
 public class ReferenceDemoDataConstants {
 
+	public static final String MODULE_ID = "referencedemodata";
+
 	public static final String CLERK_PERSON_UUID = "007037a0-0500-11e3-8ffd-0800200c9a66";
 	public static final String NURSE_PERSON_UUID = "9bed23d0-0502-11e3-8ffd-0800200c9a66";
 	public static final String DOCTOR_PERSON_UUID = "af7c3340-0503-11e3-8ffd-0800200c9a66";
@@ -39,6 +41,19 @@ public class ReferenceDemoDataConstants {
     public static final String SCHEDULER_USER_UUID = "0a3493e8-21f8-11e3-8ad1-1b02b898d14d";
 	public static final String CREATE_DEMO_PATIENTS_ON_NEXT_STARTUP = "referencedemodata.createDemoPatientsOnNextStartup";
 	public static final String CREATE_DEMO_PATIENTS = "referencedemodata.createDemoPatients";
+	public static final String DEMO_PATIENT_THREADS = "referencedemodata.demoPatientThreads";
+	public static final String CREATE_DEMO_PATIENTS_IN_BACKGROUND = "referencedemodata.createDemoPatientsInBackground";
+	public static final String DEMO_PATIENT_BATCH_SIZE = "referencedemodata.demoPatientBatchSize";
+	public static final String DIAGNOSIS_POOL_SIZE = "referencedemodata.diagnosisPoolSize";
+	public static final String DEMO_DATA_SEED = "referencedemodata.demoDataSeed";
+	public static final String DEMO_DATA_REFERENCE_DATE = "referencedemodata.demoDataReferenceDate";
+	public static final String DEMO_PATIENT_CHECKPOINT = "referencedemodata.demoPatientCheckpoint";
+	public static final String DEMO_PATIENT_LOADER = "referencedemodata.demoPatientLoader";
+	public static final String DEMO_DATA_PROFILE = "referencedemodata.demoDataProfile";
+	public static final String DEMO_PATIENT_TARGET = "referencedemodata.demoPatientTarget";
+	public static final String SEEDING_LEASE_WAIT_SECONDS = "referencedemodata.seedingLeaseWaitSeconds";
+	public static final String DEMO_PATIENT_SHARD_SIZE = "referencedemodata.demoPatientShardSize";
+	public static final String FORCE_SETUP_STEPS = "referencedemodata.forceSetupSteps";
 	public static final String VITALS_FORM_UUID = "a000cb34-9ec1-4344-a1c8-f692232f6edd";
 	public static final String VITALS_FORM_ENCOUNTERTYPE_UUID = "67a71486-1a54-468f-ac3e-7091a9a79584";
 	public static final String VITALS_FORM_NAME = "Vitals";
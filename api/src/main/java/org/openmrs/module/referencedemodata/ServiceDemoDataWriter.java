@@ -0,0 +1,41 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import org.openmrs.Patient;
+import org.openmrs.Visit;
+import org.openmrs.api.context.Context;
+
+/**
+ * Saves the demo data through the OpenMRS services, so that it goes through the same validation and save handlers as
+ * data entered by users. This is the default.
+ */
+class ServiceDemoDataWriter implements DemoDataWriter {
+
+	@Override
+	public void savePatient(Patient patient) {
+		Context.getPatientService().savePatient(patient);
+	}
+
+	/**
+	 * The encounters and obs are saved along with the visit, the mappings cascade over them and the save handlers
+	 * are applied to the whole graph.
+	 */
+	@Override
+	public void saveVisit(Visit visit) {
+		Context.getVisitService().saveVisit(visit);
+	}
+
+	@Override
+	public void flush() {
+		// flush explicitly, the transaction only commits here when it isn't part of an outer one
+		Context.flushSession();
+	}
+}
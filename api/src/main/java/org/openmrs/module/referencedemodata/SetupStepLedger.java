@@ -0,0 +1,219 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.Module;
+import org.openmrs.module.ModuleException;
+import org.openmrs.module.ModuleFactory;
+import org.openmrs.util.OpenmrsConstants;
+
+/**
+ * Keeps track of the setup steps {@link ReferenceDemoDataActivator#started()} has done, so that they can be skipped on
+ * the next startup when nothing they depend on has changed.
+ * <p>
+ * Every step is recorded with a fingerprint of its inputs in a global property named after the step, along with how
+ * long it took so that the time saved by skipping it can be reported. The fingerprint covers the platform version, the
+ * module version and a checksum of the module file, so a new build of the module reruns every step, along with any
+ * inputs the step declares. Steps that only depend on their declared inputs, like the metadata packages, can leave the
+ * module out with {@link #shouldRunForInputs(String, String...)}. Steps can be forced to run with the
+ * {@link ReferenceDemoDataConstants#FORCE_SETUP_STEPS} runtime property, set to {@code true} for all the steps or to a
+ * comma separated list of step names.
+ * <p>
+ * Whether each step ran and how long it took is also recorded in the {@link DemoDataMetrics} of the startup.
+ */
+class SetupStepLedger {
+
+	static final String MDS_PACKAGES = "mdsPackages";
+
+	static final String GLOBAL_PROPERTIES = "globalProperties";
+
+	static final String USERS_AND_PROVIDERS = "usersAndProviders";
+
+	static final String SCHEDULER_USER = "schedulerUser";
+
+	static final String APPOINTMENT_TYPES = "appointmentTypes";
+
+	private static final String GLOBAL_PROPERTY_PREFIX = "referencedemodata.setupStep.";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final Log log = LogFactory.getLog(getClass());
+
+	private final DemoDataMetrics metrics;
+
+	private final String moduleFingerprint;
+
+	private final boolean forceAll;
+
+	private final Set<String> forcedSteps;
+
+	private final Map<String, String> pending = new HashMap<String, String>();
+
+	private final Map<String, Long> startTimes = new HashMap<String, Long>();
+
+	private long skippedMillis;
+
+	SetupStepLedger(DemoDataMetrics metrics) {
+		this.metrics = metrics;
+		StringBuilder sb = new StringBuilder(OpenmrsConstants.OPENMRS_VERSION_SHORT);
+		Module module = ModuleFactory.getModuleById(ReferenceDemoDataConstants.MODULE_ID);
+		if (module != null) {
+			sb.append('|').append(module.getVersion());
+			File file = module.getFile();
+			if (file != null && file.isFile()) {
+				try {
+					sb.append('|').append(checksum(new FileInputStream(file)));
+				}
+				catch (IOException e) {
+					log.warn("Failed to compute the checksum of " + file + ", setup steps will be skipped based on the "
+					        + "module version only", e);
+				}
+			}
+		}
+		moduleFingerprint = sb.toString();
+
+		String force = Context.getRuntimeProperties().getProperty(ReferenceDemoDataConstants.FORCE_SETUP_STEPS, "").trim();
+		forceAll = "true".equalsIgnoreCase(force);
+		forcedSteps = new HashSet<String>(Arrays.asList(StringUtils.split(force, ", ")));
+	}
+
+	/**
+	 * @param step the name of the step
+	 * @param inputs anything else the outcome of the step depends on
+	 * @return true if the step has to run, in which case {@link #markDone(String)} should be called once it completed
+	 */
+	boolean shouldRun(String step, String... inputs) {
+		return check(step, checksum(moduleFingerprint + "|" + StringUtils.join(inputs, '|')));
+	}
+
+	/**
+	 * Like {@link #shouldRun(String, String...)}, but for a step that only depends on the given inputs and the platform
+	 * version, not on the build of the module.
+	 */
+	boolean shouldRunForInputs(String step, String... inputs) {
+		return check(step, checksum(OpenmrsConstants.OPENMRS_VERSION_SHORT + "|" + StringUtils.join(inputs, '|')));
+	}
+
+	private boolean check(String step, String fingerprint) {
+		pending.put(step, fingerprint);
+		startTimes.put(step, System.currentTimeMillis());
+		if (forceAll || forcedSteps.contains(step)) {
+			log.info("Running setup step " + step + " because it is forced");
+			return true;
+		}
+		// the value is the fingerprint followed by the duration of the last run in milliseconds
+		String[] recorded = StringUtils.split(
+		    Context.getAdministrationService().getGlobalProperty(GLOBAL_PROPERTY_PREFIX + step, ""), ' ');
+		if (recorded.length > 0 && fingerprint.equals(recorded[0])) {
+			long millis = recorded.length > 1 && StringUtils.isNumeric(recorded[1]) ? Long.parseLong(recorded[1]) : 0;
+			skippedMillis += millis;
+			metrics.recordPhase(step, 0, true);
+			log.info("Skipping setup step " + step + ", nothing changed since it last ran, saving about " + millis + " ms");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return how long the skipped steps took the last time they ran
+	 */
+	long getSkippedMillis() {
+		return skippedMillis;
+	}
+
+	void markDone(String step) {
+		String fingerprint = pending.remove(step);
+		if (fingerprint == null) {
+			throw new IllegalStateException("Setup step " + step + " was not checked before it ran");
+		}
+		long millis = System.currentTimeMillis() - startTimes.remove(step);
+		metrics.recordPhase(step, millis, false);
+		String value = fingerprint + " " + millis;
+		AdministrationService as = Context.getAdministrationService();
+		GlobalProperty gp = as.getGlobalPropertyObject(GLOBAL_PROPERTY_PREFIX + step);
+		if (gp == null) {
+			gp = new GlobalProperty(GLOBAL_PROPERTY_PREFIX + step, value,
+			        "Fingerprint of the inputs of the last run of this Reference Demo Data setup step and its duration");
+		} else {
+			gp.setPropertyValue(value);
+		}
+		as.saveGlobalProperty(gp);
+	}
+
+	/**
+	 * @return the checksum of a class path resource, to be used as an input of a step
+	 */
+	static String resourceChecksum(ClassLoader classLoader, String path) {
+		InputStream in = classLoader.getResourceAsStream(path);
+		if (in == null) {
+			return "";
+		}
+		try {
+			return checksum(in);
+		}
+		catch (IOException e) {
+			throw new ModuleException("Failed to read " + path, e);
+		}
+	}
+
+	private static String checksum(String s) {
+		MessageDigest digest = newDigest();
+		digest.update(s.getBytes(UTF_8));
+		return toHex(digest.digest());
+	}
+
+	private static String checksum(InputStream in) throws IOException {
+		MessageDigest digest = newDigest();
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		finally {
+			in.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		return String.format("%0" + (bytes.length * 2) + "x", new BigInteger(1, bytes));
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import org.openmrs.Concept;
+import org.openmrs.ConceptNumeric;
+import org.openmrs.api.ConceptService;
+
+/**
+ * The vital signs recorded in a demo vitals encounter, with the range their values are picked from. The ranges are
+ * those of the concepts' absolute bounds where set, resolved once when the table is loaded, so that generating a value
+ * is a lookup in a primitive array. The vital signs are indexed in the order of {@link #NAMES}.
+ */
+final class VitalSignBounds {
+
+	static final String[] NAMES = { "Height (cm)", "Weight (kg)", "Temperature (C)", "Pulse", "Respiratory rate",
+	        "Systolic blood pressure", "Diastolic blood pressure", "Blood oxygen saturation" };
+
+	/**
+	 * The ranges used when a concept doesn't set absolute bounds.
+	 */
+	private static final int[][] DEFAULT_RANGES = { { 10, 228 }, { 1, 250 }, { 25, 43 }, { 0, 230 }, { 5, 100 },
+	        { 0, 250 }, { 0, 150 }, { 0, 100 } };
+
+	private final Concept[] concepts;
+
+	private final int[] min;
+
+	private final int[] max;
+
+	VitalSignBounds(Concept[] concepts, int[] min, int[] max) {
+		this.concepts = concepts;
+		this.min = min;
+		this.max = max;
+	}
+
+	/**
+	 * Looks up the vital sign concepts and their bounds, the concepts that don't exist are left null and should be
+	 * reported as missing by the caller.
+	 */
+	static VitalSignBounds load(ConceptService cs) {
+		Concept[] concepts = new Concept[NAMES.length];
+		int[] min = new int[NAMES.length];
+		int[] max = new int[NAMES.length];
+		for (int i = 0; i < NAMES.length; i++) {
+			min[i] = DEFAULT_RANGES[i][0];
+			max[i] = DEFAULT_RANGES[i][1];
+			concepts[i] = cs.getConcept(NAMES[i]);
+			if (concepts[i] == null) {
+				continue;
+			}
+			ConceptNumeric conceptNumeric = cs.getConceptNumeric(concepts[i].getConceptId());
+			if (conceptNumeric != null && conceptNumeric.getHiAbsolute() != null) {
+				max[i] = conceptNumeric.getHiAbsolute().intValue();
+			}
+			if (conceptNumeric != null && conceptNumeric.getLowAbsolute() != null) {
+				min[i] = conceptNumeric.getLowAbsolute().intValue();
+			}
+		}
+		return new VitalSignBounds(concepts, min, max);
+	}
+
+	int size() {
+		return concepts.length;
+	}
+
+	Concept getConcept(int index) {
+		return concepts[index];
+	}
+
+	int getMin(int index) {
+		return min[index];
+	}
+
+	int getMax(int index) {
+		return max[index];
+	}
+}
@@ -9,7 +9,9 @@
  */
 package org.openmrs.module.referencedemodata.handler;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.openmrs.annotation.Handler;
 import org.openmrs.module.appointmentscheduling.AppointmentType;
@@ -20,6 +22,10 @@ import org.springframework.beans.factory.annotation.Qualifier;
 
 /**
  * Deployment handler for appointment types
+ * <p>
+ * A bundle installing several appointment types can call {@link #prefetch()} first, after which lookups are answered
+ * from all the appointment types loaded at once instead of with a query per type, until {@link #clearPrefetch()} is
+ * called. The prefetched types are kept per thread.
  */
 @Handler(supports = { AppointmentType.class })
 public class AppointmentTypeDeployHandler extends AbstractObjectDeployHandler<AppointmentType> {
@@ -28,11 +34,33 @@ public class AppointmentTypeDeployHandler extends AbstractObjectDeployHandler<Ap
 	@Qualifier("appointmentService")
 	private AppointmentService appointmentService;
 	
+	private final ThreadLocal<Prefetched> prefetched = new ThreadLocal<Prefetched>();
+	
+	/**
+	 * Loads all the appointment types, including retired ones, to answer {@link #fetch(String)} and
+	 * {@link #findAlternateMatch(AppointmentType)} from.
+	 */
+	public void prefetch() {
+		Prefetched types = new Prefetched();
+		for (AppointmentType type : appointmentService.getAllAppointmentTypes(true)) {
+			types.add(type);
+		}
+		prefetched.set(types);
+	}
+	
+	public void clearPrefetch() {
+		prefetched.remove();
+	}
+	
 	/**
 	 * @see org.openmrs.module.metadatadeploy.handler.ObjectDeployHandler#fetch(String)
 	 */
 	@Override
 	public AppointmentType fetch(String uuid) {
+		Prefetched types = prefetched.get();
+		if (types != null) {
+			return types.byUuid.get(uuid);
+		}
 		return appointmentService.getAppointmentTypeByUuid(uuid);
 	}
 	
@@ -41,7 +69,12 @@ public class AppointmentTypeDeployHandler extends AbstractObjectDeployHandler<Ap
 	 */
 	@Override
 	public AppointmentType save(AppointmentType obj) {
-		return appointmentService.saveAppointmentType(obj);
+		AppointmentType saved = appointmentService.saveAppointmentType(obj);
+		Prefetched types = prefetched.get();
+		if (types != null) {
+			types.add(saved);
+		}
+		return saved;
 	}
 	
 	/**
@@ -49,6 +82,10 @@ public class AppointmentTypeDeployHandler extends AbstractObjectDeployHandler<Ap
 	 */
 	@Override
 	public AppointmentType findAlternateMatch(AppointmentType incoming) {
+		Prefetched types = prefetched.get();
+		if (types != null) {
+			return types.byName.get(incoming.getName());
+		}
 		List<AppointmentType> possibleMatches = appointmentService.getAppointmentTypes(incoming.getName(), true);
 		for (AppointmentType possibleMatch : possibleMatches) {
 			if (possibleMatch.getName().equals(incoming.getName())) {
@@ -68,4 +105,32 @@ public class AppointmentTypeDeployHandler extends AbstractObjectDeployHandler<Ap
 	public void uninstall(AppointmentType obj, String reason) {
 		appointmentService.retireAppointmentType(obj, reason);
 	}
+	
+	private static class Prefetched {
+		
+		private final Map<String, AppointmentType> byUuid = new HashMap<String, AppointmentType>();
+		
+		private final Map<String, AppointmentType> byName = new HashMap<String, AppointmentType>();
+		
+		/**
+		 * The name each type was added under, the entity itself may have been renamed in place since
+		 */
+		private final Map<String, String> names = new HashMap<String, String>();
+		
+		void add(AppointmentType type) {
+			byUuid.put(type.getUuid(), type);
+			String previousName = names.put(type.getUuid(), type.getName());
+			if (previousName != null) {
+				// a saved type, possibly renamed, drop the entry for its old name
+				AppointmentType previous = byName.get(previousName);
+				if (previous != null && type.getUuid().equals(previous.getUuid())) {
+					byName.remove(previousName);
+				}
+				byName.put(type.getName(), type);
+			} else if (!byName.containsKey(type.getName())) {
+				// the first one wins, like the query results are searched
+				byName.put(type.getName(), type);
+			}
+		}
+	}
 }
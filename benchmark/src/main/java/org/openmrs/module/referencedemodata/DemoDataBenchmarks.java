@@ -0,0 +1,35 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of this module with the GC profiler, which reports the bytes allocated per operation as
+ * {@code gc.alloc.rate.norm}, so that allocation regressions show up next to the timings.
+ * <p>
+ * Takes the file to write the JSON results to and, optionally, a regular expression selecting the benchmarks to run.
+ */
+public class DemoDataBenchmarks {
+
+	public static void main(String[] args) throws RunnerException {
+		ChainedOptionsBuilder options = new OptionsBuilder().addProfiler(GCProfiler.class);
+		options.include(args.length > 1 ? args[1] : DemoPatientGeneratorBenchmark.class.getSimpleName());
+		if (args.length > 0) {
+			options.resultFormat(ResultFormatType.JSON).result(args[0]);
+		}
+		new Runner(options.build()).run();
+	}
+}
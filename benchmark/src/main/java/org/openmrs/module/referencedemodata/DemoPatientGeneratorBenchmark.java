@@ -0,0 +1,207 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.LocalDateTime;
+import org.openmrs.Concept;
+import org.openmrs.EncounterType;
+import org.openmrs.Form;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.Visit;
+import org.openmrs.VisitType;
+import org.openmrs.api.ConceptService;
+import org.openmrs.module.emrapi.EmrApiConstants;
+import org.openmrs.module.idgen.service.IdentifierSourceService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the hot paths of {@link DemoPatientGenerator} without a database: the services are stubs that hand out
+ * in-memory metadata and the writer discards everything, so only the generator's own work is measured. Run them
+ * through {@link DemoDataBenchmarks} to get the allocations per operation as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DemoPatientGeneratorBenchmark {
+
+	private static final String[] NAMES = { "Smith", "Johnson", "Williams", "Brown", "Jones", "Miller", "Davis" };
+
+	private DemoPatientGenerator generator;
+
+	private ConceptService conceptService;
+
+	private PatientIdentifierType identifierType;
+
+	private Location location;
+
+	private VisitType visitType;
+
+	private Patient patient;
+
+	private int index;
+
+	@Setup
+	public void setUp() {
+		identifierType = new PatientIdentifierType(1);
+		location = new Location(1);
+		visitType = new VisitType(1);
+
+		Map<String, EncounterType> encounterTypes = new HashMap<String, EncounterType>();
+		int id = 1;
+		for (String name : Arrays.asList(DemoDataReferenceData.VITALS, DemoDataReferenceData.VISIT_NOTE,
+		    DemoDataReferenceData.ADMISSION, DemoDataReferenceData.DISCHARGE)) {
+			EncounterType encounterType = new EncounterType(id++);
+			encounterType.setName(name);
+			encounterTypes.put(name, encounterType);
+		}
+		final Map<String, Concept> concepts = new HashMap<String, Concept>();
+		for (String name : DemoPatientGenerator.REQUIRED_CONCEPT_NAMES) {
+			concepts.put(name, new Concept(id++));
+		}
+		Map<String, Concept> diagnosisConcepts = new HashMap<String, Concept>();
+		for (String code : Arrays.asList(DemoDataReferenceData.DIAGNOSIS_CONCEPT_SET,
+		    DemoDataReferenceData.CODED_DIAGNOSIS, DemoDataReferenceData.PRESUMED_DIAGNOSIS,
+		    DemoDataReferenceData.CONFIRMED_DIAGNOSIS, EmrApiConstants.CONCEPT_CODE_DIAGNOSIS_CERTAINTY,
+		    EmrApiConstants.CONCEPT_CODE_DIAGNOSIS_ORDER, EmrApiConstants.CONCEPT_CODE_DIAGNOSIS_ORDER_PRIMARY,
+		    EmrApiConstants.CONCEPT_CODE_DIAGNOSIS_ORDER_SECONDARY)) {
+			diagnosisConcepts.put(code, new Concept(id++));
+		}
+		int[] diagnosisIds = new int[100];
+		for (int i = 0; i < diagnosisIds.length; i++) {
+			diagnosisIds[i] = id++;
+		}
+
+		Concept[] vitalSignConcepts = new Concept[VitalSignBounds.NAMES.length];
+		for (int i = 0; i < vitalSignConcepts.length; i++) {
+			vitalSignConcepts[i] = concepts.get(VitalSignBounds.NAMES[i]);
+		}
+		VitalSignBounds vitalSigns = new VitalSignBounds(vitalSignConcepts, new int[vitalSignConcepts.length],
+		        new int[] { 228, 250, 43, 230, 100, 250, 150, 100 });
+
+		DemoDataReferenceData referenceData = new DemoDataReferenceData(identifierType, Arrays.asList(visitType),
+		        new Location(2), new Location(3), encounterTypes, new Form(1), new Form(2), diagnosisConcepts, vitalSigns);
+		DemoDataProfile profile = new DemoDataProfile(DemoDataProfile.DEFAULT_PROFILE,
+		        DemoDataProfile.readProfile(DemoDataProfile.DEFAULT_PROFILE));
+		DemoPatientRun run = new DemoPatientRun(0, new LocalDateTime(2016, 6, 15, 12, 0), profile, 1,
+		        new DiagnosisConceptPool(diagnosisIds), new DemoPatientCheckpoint(0), DemoPatientRun.Loader.SERVICE, new DemoDataMetrics());
+
+		conceptService = stub(ConceptService.class, new InvocationHandler() {
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("getConcept") && args[0] instanceof String) {
+					return concepts.get(args[0]);
+				} else if (method.getName().equals("getConcept")) {
+					return new Concept((Integer) args[0]);
+				}
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+		IdentifierSourceService identifierSourceService = stub(IdentifierSourceService.class, new InvocationHandler() {
+
+			private int next = 100000;
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("getAutoGenerationOption")) {
+					return null;
+				} else if (method.getName().equals("generateIdentifier")) {
+					return String.valueOf(next++);
+				}
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+
+		generator = new DemoPatientGenerator(identifierSourceService, referenceData, run, new DiscardingWriter(),
+		        conceptService);
+		generator.startPatient(0);
+		patient = generator.createBasicDemoPatient(identifierType, location);
+	}
+
+	@Benchmark
+	public int randomBetween() {
+		return generator.randomBetween(0, 365 * 2);
+	}
+
+	@Benchmark
+	public String randomArrayEntry() {
+		return generator.randomArrayEntry(NAMES);
+	}
+
+	@Benchmark
+	public String randomSuffix() {
+		return generator.randomSuffix();
+	}
+
+	@Benchmark
+	public Patient createBasicDemoPatient() {
+		generator.startPatient(index++);
+		return generator.createBasicDemoPatient(identifierType, location);
+	}
+
+	@Benchmark
+	public Visit createShortDemoVisit() {
+		generator.startPatient(index++);
+		return generator.createDemoVisit(patient, Arrays.asList(visitType), location, true);
+	}
+
+	@Benchmark
+	public Visit createLongDemoVisit() {
+		generator.startPatient(index++);
+		return generator.createDemoVisit(patient, Arrays.asList(visitType), location, false);
+	}
+
+	@Benchmark
+	public Concept findConcept() {
+		return generator.findConcept("Weight (kg)", conceptService);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T stub(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+	}
+
+	private static class DiscardingWriter implements DemoDataWriter {
+
+		@Override
+		public void savePatient(Patient patient) {
+		}
+
+		@Override
+		public void saveVisit(Visit visit) {
+		}
+
+		@Override
+		public void flush() {
+		}
+	}
+}
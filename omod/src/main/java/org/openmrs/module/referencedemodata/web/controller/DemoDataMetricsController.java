@@ -0,0 +1,117 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata.web.controller;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.referencedemodata.DemoConceptCache;
+import org.openmrs.module.referencedemodata.DemoDataMetrics;
+import org.openmrs.module.referencedemodata.DemoDataMetrics.LatencyHistogram;
+import org.openmrs.module.referencedemodata.DemoDataMetrics.Phase;
+import org.openmrs.module.referencedemodata.DemoDataMetrics.SaveCall;
+import org.openmrs.module.referencedemodata.DemoPatientProgress;
+import org.openmrs.module.referencedemodata.DemoPatientRun;
+import org.openmrs.module.referencedemodata.ReferenceDemoDataActivator;
+import org.openmrs.util.PrivilegeConstants;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/**
+ * Shows the {@link DemoDataMetrics} of the last startup in the Prometheus text format, so that they can be scraped
+ * during performance runs. Read-only, and restricted to users who can view the administration functions.
+ */
+@Controller
+public class DemoDataMetricsController {
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+	@RequestMapping(value = "/module/referencedemodata/metrics.form", method = RequestMethod.GET)
+	public void getMetrics(HttpServletResponse response) throws IOException {
+		Context.requirePrivilege(PrivilegeConstants.VIEW_ADMIN_FUNCTIONS);
+		response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+		PrintWriter out = response.getWriter();
+		DemoDataMetrics metrics = ReferenceDemoDataActivator.getMetrics();
+		if (metrics != null) {
+			write(out, metrics, ReferenceDemoDataActivator.getDemoPatientRun());
+		}
+		out.flush();
+	}
+
+	private void write(PrintWriter out, DemoDataMetrics metrics, DemoPatientRun run) {
+		out.println("# TYPE referencedemodata_started_timestamp_seconds gauge");
+		out.println("referencedemodata_started_timestamp_seconds " + seconds(metrics.getStartedAt()));
+
+		out.println("# TYPE referencedemodata_phase_duration_seconds gauge");
+		for (Phase phase : metrics.getPhases()) {
+			out.println("referencedemodata_phase_duration_seconds{phase=\"" + phase.getName() + "\",skipped=\""
+			        + phase.isSkipped() + "\"} " + seconds(phase.getMillis()));
+		}
+
+		out.println("# TYPE referencedemodata_written_total counter");
+		out.println("referencedemodata_written_total{entity=\"patient\"} " + metrics.getPatientCount());
+		out.println("referencedemodata_written_total{entity=\"visit\"} " + metrics.getVisitCount());
+		out.println("referencedemodata_written_total{entity=\"encounter\"} " + metrics.getEncounterCount());
+		out.println("referencedemodata_written_total{entity=\"obs\"} " + metrics.getObsCount());
+
+		out.println("# TYPE referencedemodata_save_latency_seconds summary");
+		for (SaveCall call : SaveCall.values()) {
+			LatencyHistogram latency = metrics.getLatency(call);
+			String label = "call=\"" + call.name().toLowerCase(Locale.ENGLISH) + "\"";
+			for (double quantile : QUANTILES) {
+				out.println("referencedemodata_save_latency_seconds{" + label + ",quantile=\"" + quantile + "\"} "
+				        + micros(latency.getPercentileMicros(quantile * 100)));
+			}
+			out.println("referencedemodata_save_latency_seconds_sum{" + label + "} " + micros(latency.getTotalMicros()));
+			out.println("referencedemodata_save_latency_seconds_count{" + label + "} " + latency.getCount());
+		}
+
+		if (run != null) {
+			out.println("# TYPE referencedemodata_demo_patient_run_status gauge");
+			for (DemoPatientRun.Status status : DemoPatientRun.Status.values()) {
+				out.println("referencedemodata_demo_patient_run_status{status=\"" + status + "\"} "
+				        + (run.getStatus() == status ? 1 : 0));
+			}
+
+			DemoPatientProgress progress = run.getProgress();
+			out.println("# TYPE referencedemodata_demo_patients gauge");
+			out.println("referencedemodata_demo_patients{state=\"total\"} " + progress.getTotalCount());
+			out.println("referencedemodata_demo_patients{state=\"done\"} " + progress.getDoneCount());
+			out.println("referencedemodata_demo_patients{state=\"failed\"} " + progress.getErrorCount());
+			out.println("# TYPE referencedemodata_demo_patients_per_second gauge");
+			out.println("referencedemodata_demo_patients_per_second " + progress.getCurrentRate());
+			out.println("# TYPE referencedemodata_demo_patients_eta_seconds gauge");
+			out.println("referencedemodata_demo_patients_eta_seconds " + (progress.getEstimatedMillisLeft() < 0 ? "NaN"
+			        : seconds(progress.getEstimatedMillisLeft())));
+
+			DemoConceptCache conceptCache = run.getConceptCache();
+			out.println("# TYPE referencedemodata_concept_cache_requests_total counter");
+			out.println("referencedemodata_concept_cache_requests_total{result=\"hit\"} " + conceptCache.getHitCount());
+			out.println("referencedemodata_concept_cache_requests_total{result=\"miss\"} " + conceptCache.getMissCount());
+			out.println("# TYPE referencedemodata_concept_cache_load_seconds_total counter");
+			out.println("referencedemodata_concept_cache_load_seconds_total " + micros(conceptCache.getLoadNanos() / 1000));
+			out.println("# TYPE referencedemodata_concept_cache_size gauge");
+			out.println("referencedemodata_concept_cache_size " + conceptCache.size());
+		}
+	}
+
+	private static String seconds(long millis) {
+		return String.valueOf(millis / 1000.0);
+	}
+
+	private static String micros(long micros) {
+		return String.valueOf(micros / 1000000.0);
+	}
+}
@@ -0,0 +1,242 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.referencedemodata;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.PatientService;
+import org.openmrs.module.idgen.SequentialIdentifierGenerator;
+import org.openmrs.module.idgen.service.IdentifierSourceService;
+import org.openmrs.module.idgen.validator.LuhnMod30IdentifierValidator;
+import org.openmrs.module.referencemetadata.ReferenceMetadataActivator;
+import org.openmrs.module.referencemetadata.ReferenceMetadataConstants;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.SkipBaseSetup;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Measures how fast demo patients are created end to end on the in-memory database, for 1k, 10k and 50k patients in
+ * batches of {@value #BATCH_SIZE}, and for 1k patients one per transaction to show what the batching gains. Only run
+ * with the benchmark profile, see the omod pom for the settings.
+ * <p>
+ * The patients and obs per second, the peak heap used and the GC time of every size are written to a JSON report. The
+ * peak is sampled every {@value #HEAP_SAMPLE_MILLIS} ms while the patients are created, so a shorter spike between two
+ * samples can be missed. The benchmark fails when the patients per second drop more than the allowed percentage below
+ * the stored baseline. A size without a baseline yet has its figure recorded as the baseline and passes, so that a new
+ * size or machine only needs one run to get started.
+ */
+@SkipBaseSetup
+public class DemoDataThroughputBenchmark extends BaseModuleContextSensitiveTest {
+
+	private static final Log log = LogFactory.getLog(DemoDataThroughputBenchmark.class);
+
+	private static final int BATCH_SIZE = 100;
+
+	private static final long HEAP_SAMPLE_MILLIS = 10;
+
+	private static final List<String> results = new ArrayList<String>();
+
+	@Autowired
+	AdministrationService adminService;
+
+	@Autowired
+	PatientService patientService;
+
+	private SequentialIdentifierGenerator identifierGenerator;
+
+	private long identifierSeed;
+
+	@Test
+	public void shouldCreate1000DemoPatientsOneByOne() throws Exception {
+		benchmark(1000, 1);
+	}
+
+	@Test
+	public void shouldCreate1000DemoPatients() throws Exception {
+		benchmark(1000, BATCH_SIZE);
+	}
+
+	@Test
+	public void shouldCreate10000DemoPatients() throws Exception {
+		benchmark(10000, BATCH_SIZE);
+	}
+
+	@Test
+	public void shouldCreate50000DemoPatients() throws Exception {
+		benchmark(50000, BATCH_SIZE);
+	}
+
+	@AfterClass
+	public static void writeReport() throws IOException {
+		String reportFile = System.getProperty("benchmark.reportFile");
+		if (reportFile != null && !results.isEmpty()) {
+			FileUtils.writeStringToFile(new File(reportFile), "[\n" + StringUtils.join(results, ",\n") + "\n]\n", "UTF-8");
+		}
+	}
+
+	private void benchmark(int patientCount, int batchSize) throws Exception {
+		Assume.assumeTrue(patientCount <= Integer.getInteger("benchmark.maxPatients", Integer.MAX_VALUE));
+		initializeInMemoryDatabase();
+		executeDataSet("requiredDataTestDataset.xml");
+		authenticate();
+
+		new ReferenceMetadataActivator().started();
+		ReferenceDemoDataActivator activator = new ReferenceDemoDataActivator();
+		activator.setIdentifierSourceService(mockIdentifierSourceService());
+		// install the metadata first so that it isn't part of the measurements
+		activator.started();
+
+		adminService.setGlobalProperty(ReferenceDemoDataConstants.DEMO_PATIENT_BATCH_SIZE, "" + batchSize);
+		adminService.setGlobalProperty(ReferenceDemoDataConstants.CREATE_DEMO_PATIENTS_ON_NEXT_STARTUP, "" + patientCount);
+		System.gc();
+		final AtomicLong peakHeapBytes = new AtomicLong();
+		Thread heapSampler = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+				while (true) {
+					long used = memory.getHeapMemoryUsage().getUsed();
+					if (used > peakHeapBytes.get()) {
+						peakHeapBytes.set(used);
+					}
+					try {
+						Thread.sleep(HEAP_SAMPLE_MILLIS);
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "benchmark-heap-sampler");
+		heapSampler.setDaemon(true);
+		long gcMillis = getGcMillis();
+		heapSampler.start();
+		try {
+			activator.started();
+		}
+		finally {
+			heapSampler.interrupt();
+			heapSampler.join();
+		}
+		gcMillis = getGcMillis() - gcMillis;
+
+		DemoDataMetrics metrics = ReferenceDemoDataActivator.getMetrics();
+		long millis = 0;
+		for (DemoDataMetrics.Phase phase : metrics.getPhases()) {
+			if (DemoDataMetrics.PATIENT_GENERATION.equals(phase.getName())) {
+				millis = phase.getMillis();
+			}
+		}
+		double seconds = Math.max(millis, 1) / 1000.0;
+		double patientsPerSecond = metrics.getPatientCount() / seconds;
+		double obsPerSecond = metrics.getObsCount() / seconds;
+		results.add(String.format(Locale.ENGLISH, "  {\"patients\": %d, \"batchSize\": %d, \"seconds\": %.3f, "
+		        + "\"patientsPerSecond\": %.1f, \"obsPerSecond\": %.1f, \"peakHeapBytes\": %d, \"gcMillis\": %d}",
+		    patientCount, batchSize, seconds, patientsPerSecond, obsPerSecond, peakHeapBytes.get(), gcMillis));
+
+		checkBaseline(patientCount, batchSize, patientsPerSecond);
+	}
+
+	private void checkBaseline(int patientCount, int batchSize, double patientsPerSecond) throws IOException {
+		String baselineFile = System.getProperty("benchmark.baselineFile");
+		if (baselineFile == null) {
+			return;
+		}
+		File file = new File(baselineFile);
+		Properties baseline = new Properties();
+		if (file.isFile()) {
+			InputStream in = new FileInputStream(file);
+			try {
+				baseline.load(in);
+			}
+			finally {
+				in.close();
+			}
+		}
+
+		String key = "patientsPerSecond." + patientCount + ".batchSize" + batchSize;
+		if (Boolean.getBoolean("benchmark.updateBaseline") || baseline.getProperty(key) == null) {
+			log.info("Recording " + key + " in " + file + " as the baseline");
+			baseline.setProperty(key, String.format(Locale.ENGLISH, "%.1f", patientsPerSecond));
+			OutputStream out = new FileOutputStream(file);
+			try {
+				baseline.store(out, "Demo patients created per second by " + getClass().getSimpleName());
+			}
+			finally {
+				out.close();
+			}
+		} else {
+			double expected = Double.parseDouble(baseline.getProperty(key));
+			double maxRegression = Double.parseDouble(System.getProperty("benchmark.maxRegressionPercent", "20"));
+			double minimum = expected * (1 - maxRegression / 100);
+			assertTrue(String.format(Locale.ENGLISH, "Created %.1f demo patients per second for %d patients in batches of %d,"
+			        + " the baseline is %.1f and at most %.0f%% less is allowed", patientsPerSecond, patientCount, batchSize,
+			    expected, maxRegression),
+			    patientsPerSecond >= minimum);
+		}
+	}
+
+	private static long getGcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(gc.getCollectionTime(), 0);
+		}
+		return millis;
+	}
+
+	private IdentifierSourceService mockIdentifierSourceService() {
+		PatientIdentifierType openmrsIdType = patientService
+		        .getPatientIdentifierTypeByName(ReferenceMetadataConstants.OPENMRS_ID_NAME);
+		identifierGenerator = new SequentialIdentifierGenerator();
+		identifierGenerator.setIdentifierType(openmrsIdType);
+		identifierGenerator.setBaseCharacterSet(new LuhnMod30IdentifierValidator().getBaseCharacters());
+		identifierGenerator.setMinLength(6);
+		identifierGenerator.setFirstIdentifierBase("10000");
+
+		IdentifierSourceService iss = Mockito.mock(IdentifierSourceService.class);
+		Mockito.when(iss.generateIdentifier(Mockito.eq(openmrsIdType), Mockito.eq("DemoData"))).thenAnswer(
+		    new Answer<String>() {
+
+			    @Override
+			    public String answer(InvocationOnMock invocation) throws Throwable {
+				    return identifierGenerator.getIdentifierForSeed(++identifierSeed);
+			    }
+		    });
+		return iss;
+	}
+}
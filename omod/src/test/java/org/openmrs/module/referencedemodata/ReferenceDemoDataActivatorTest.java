@@ -14,13 +14,20 @@
 package org.openmrs.module.referencedemodata;
 
 import org.hibernate.cfg.Environment;
+import org.hibernate.jdbc.Work;
+import org.joda.time.LocalDateTime;
 import org.junit.Test;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.openmrs.Encounter;
 import org.openmrs.GlobalProperty;
+import org.openmrs.Location;
+import org.openmrs.Obs;
 import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
 import org.openmrs.PatientIdentifierType;
+import org.openmrs.PersonName;
 import org.openmrs.User;
 import org.openmrs.Visit;
 import org.openmrs.api.AdministrationService;
@@ -30,6 +37,7 @@ import org.openmrs.api.ProviderService;
 import org.openmrs.api.UserService;
 import org.openmrs.api.VisitService;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.ModuleException;
 import org.openmrs.module.idgen.SequentialIdentifierGenerator;
 import org.openmrs.module.idgen.service.IdentifierSourceService;
 import org.openmrs.module.idgen.validator.LuhnMod30IdentifierValidator;
@@ -38,17 +46,33 @@ import org.openmrs.module.referencemetadata.ReferenceMetadataConstants;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.openmrs.test.SkipBaseSetup;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @SkipBaseSetup
 public class ReferenceDemoDataActivatorTest extends BaseModuleContextSensitiveTest {
@@ -152,18 +176,597 @@ public class ReferenceDemoDataActivatorTest extends BaseModuleContextSensitiveTe
 		referenceDemoDataActivator.started();
 
 		List<Patient> allPatients = patientService.getAllPatients();
-        for (Patient patient : allPatients) {
-	        System.out.println(patient + " " + patient.getPatientIdentifier() + " " + patient.getPersonName() + " " + patient.getBirthdate() + " " + patient.getAddresses());
-        }
 		assertEquals(demoPatientCount, allPatients.size());
         List<Visit> allVisits = visitService.getAllVisits();
-        for (Visit visit : allVisits) {
-	        System.out.println(visit + " " + visit.getStartDatetime() + " - " + visit.getStopDatetime() + " " + visit.getEncounters());
-        }
 		assertTrue(allVisits.size() > demoPatientCount);
+
+		DemoDataMetrics metrics = ReferenceDemoDataActivator.getMetrics();
+		assertEquals(demoPatientCount, metrics.getPatientCount());
+		assertEquals(allVisits.size(), metrics.getVisitCount());
+		assertEquals(demoPatientCount, metrics.getLatency(DemoDataMetrics.SaveCall.SAVE_PATIENT).getCount());
+		assertEquals(DemoDataMetrics.PATIENT_GENERATION, metrics.getPhases().get(metrics.getPhases().size() - 1).getName());
+
+		DemoPatientProgress progress = ReferenceDemoDataActivator.getDemoPatientRun().getProgress();
+		assertEquals(demoPatientCount, progress.getTotalCount());
+		assertEquals(demoPatientCount, progress.getDoneCount());
+		assertEquals(0, progress.getErrorCount());
+    }
+    
+    /**
+     * @verifies create demo patients in batches
+     * @see ReferenceDemoDataActivator#started()
+     */
+    @Test
+    public void started_shouldCreateDemoPatientsInBatches() throws Exception {
+        final int demoPatientCount = 20;
+        initializeInMemoryDatabase();
+        executeDataSet("requiredDataTestDataset.xml");
+        authenticate();
+        
+        new ReferenceMetadataActivator().started();
+        
+        ReferenceDemoDataActivator referenceDemoDataActivator = new ReferenceDemoDataActivator();
+        initMockGenerator(referenceDemoDataActivator);
+        referenceDemoDataActivator.started();
+        
+        // how the batch size affects the throughput is measured by DemoDataThroughputBenchmark
+        createDemoPatientsInBatchesOf(referenceDemoDataActivator, demoPatientCount, 1);
+        assertEquals(demoPatientCount, patientService.getAllPatients().size());
+        createDemoPatientsInBatchesOf(referenceDemoDataActivator, demoPatientCount, 7);
+        assertEquals(2 * demoPatientCount, patientService.getAllPatients().size());
+        assertEquals(0, ReferenceDemoDataActivator.getDemoPatientRun().getProgress().getErrorCount());
+    }
+    
+    /**
+     * @verifies reject a demo data profile range too wide to draw numbers from
+     * @see ReferenceDemoDataActivator#started()
+     */
+    @Test
+    public void started_shouldRejectADemoDataProfileRangeTooWideToDrawNumbersFrom() throws Exception {
+        initializeInMemoryDatabase();
+        executeDataSet("requiredDataTestDataset.xml");
+        authenticate();
+        
+        new ReferenceMetadataActivator().started();
+        
+        ReferenceDemoDataActivator referenceDemoDataActivator = new ReferenceDemoDataActivator();
+        initMockGenerator(referenceDemoDataActivator);
+        referenceDemoDataActivator.started();
+        adminService.setGlobalProperty(ReferenceDemoDataConstants.DEMO_DATA_PROFILE + ".visitsPerPatient", "0-"
+                + Integer.MAX_VALUE);
+        adminService.setGlobalProperty(ReferenceDemoDataConstants.CREATE_DEMO_PATIENTS_ON_NEXT_STARTUP, "1");
+        
+        try {
+            referenceDemoDataActivator.started();
+            fail();
+        }
+        catch (ModuleException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("visitsPerPatient"));
+        }
+        assertEquals(0, patientService.getAllPatients().size());
+    }
+    
+    /**
+     * @verifies skip the setup and demo patients while another node holds the seeding lease
+     * @see ReferenceDemoDataActivator#started()
+     */
+    @Test
+    public void started_shouldSkipTheSetupAndDemoPatientsWhileAnotherNodeHoldsTheSeedingLease() throws Exception {
+        initializeInMemoryDatabase();
+        executeDataSet("requiredDataTestDataset.xml");
+        authenticate();
+        
+        new ReferenceMetadataActivator().started();
+        
+        ReferenceDemoDataActivator referenceDemoDataActivator = new ReferenceDemoDataActivator();
+        initMockGenerator(referenceDemoDataActivator);
+        referenceDemoDataActivator.started();
+        adminService.setGlobalProperty(ReferenceDemoDataConstants.CREATE_DEMO_PATIENTS_ON_NEXT_STARTUP, "3");
+        
+        DemoDataLease otherNode = new DemoDataLease("other-node", DemoDataLease.LEASE_MILLIS);
+        assertTrue(otherNode.acquire(0));
+        referenceDemoDataActivator.started();
+        assertEquals(0, patientService.getAllPatients().size());
+        assertEquals("3", adminService.getGlobalProperty(ReferenceDemoDataConstants.CREATE_DEMO_PATIENTS_ON_NEXT_STARTUP));
+        
+        // a node that died holding the lease doesn't block the others once the lease expired
+        otherNode.release();
+        assertTrue(new DemoDataLease("crashed-node", -1).acquire(0));
+        referenceDemoDataActivator.started();
+        assertEquals(3, patientService.getAllPatients().size());
+        assertTrue(otherNode.acquire(0));
+    }
+    
+    /**
+     * @verifies let only one of the nodes racing for it take it
+     * @see DemoDataLease#acquire(long)
+     */
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void acquire_shouldLetOnlyOneOfTheNodesRacingForItTakeIt() throws Exception {
+        final int nodeCount = 4;
+        final CyclicBarrier start = new CyclicBarrier(nodeCount);
+        final CountDownLatch finished = new CountDownLatch(nodeCount);
+        final List<String> owners = Collections.synchronizedList(new ArrayList<String>());
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        try {
+            // every node has its own session and connection, they all insert the lease at the same time
+            for (int i = 0; i < nodeCount; i++) {
+                final DemoDataLease node = new DemoDataLease("node-" + i, DemoDataLease.LEASE_MILLIS);
+                new SessionThreadExecutor(false).execute(new Runnable() {
+                    
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            if (node.acquire(0)) {
+                                owners.add(node.getOwner());
+                            }
+                        }
+                        catch (Throwable t) {
+                            failures.add(t);
+                        }
+                        finally {
+                            finished.countDown();
+                        }
+                    }
+                });
+            }
+            assertTrue(finished.await(60, TimeUnit.SECONDS));
+            assertTrue(failures.toString(), failures.isEmpty());
+            assertEquals(1, owners.size());
+            assertTrue(readLease().startsWith(owners.get(0) + "|"));
+        }
+        finally {
+            deleteLease();
+        }
+    }
+    
+    /**
+     * @verifies take over a lease that expired
+     * @see DemoDataLease#acquire(long)
+     */
+    @Test
+    public void acquire_shouldTakeOverALeaseThatExpired() throws Exception {
+        DemoDataLease crashedNode = new DemoDataLease("crashed-node", -1);
+        assertTrue(crashedNode.acquire(0));
+        
+        DemoDataLease thisNode = new DemoDataLease("this-node", DemoDataLease.LEASE_MILLIS);
+        assertTrue(thisNode.acquire(0));
+        assertTrue(readLease().startsWith("this-node|"));
+        // the node that held it finds out it lost it
+        assertFalse(crashedNode.renewIfDue());
+        
+        // one that didn't expire isn't taken over
+        DemoDataLease otherNode = new DemoDataLease("other-node", DemoDataLease.LEASE_MILLIS);
+        assertFalse(otherNode.acquire(0));
+        assertTrue(otherNode.getHolder().startsWith("this-node until "));
+    }
+    
+    /**
+     * @verifies keep the lease from expiring while it is held
+     * @see DemoDataLease#startHeartbeat(Executor)
+     */
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void startHeartbeat_shouldKeepTheLeaseFromExpiringWhileItIsHeld() throws Exception {
+        final long leaseMillis = 1000;
+        DemoDataLease thisNode = new DemoDataLease("this-node", leaseMillis);
+        try {
+            assertTrue(thisNode.acquire(0));
+            thisNode.startHeartbeat(new SessionThreadExecutor(false));
+            // without the heartbeat the lease would have expired a few times over
+            Thread.sleep(3 * leaseMillis);
+            assertFalse(new DemoDataLease("other-node", leaseMillis).acquire(0));
+            assertTrue(thisNode.renewIfDue());
+            
+            // releasing it stops the heartbeat
+            thisNode.release();
+            DemoDataLease otherNode = new DemoDataLease("other-node", leaseMillis);
+            assertTrue(otherNode.acquire(0));
+            otherNode.release();
+        }
+        finally {
+            thisNode.release();
+            deleteLease();
+        }
+    }
+    
+    private String readLease() {
+        final String[] value = new String[1];
+        GlobalPropertyRows.execute(new Work() {
+            
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                value[0] = GlobalPropertyRows.read(connection, DemoDataLease.GLOBAL_PROPERTY);
+            }
+        });
+        return value[0];
+    }
+    
+    /**
+     * Removes the lease the threads committed, which the test transaction can't roll back.
+     */
+    private void deleteLease() {
+        GlobalPropertyRows.execute(new Work() {
+            
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                GlobalPropertyRows.delete(connection, DemoDataLease.GLOBAL_PROPERTY);
+            }
+        });
+    }
+    
+    /**
+     * @verifies create the demo patients of the shards no other node is working on
+     * @see ReferenceDemoDataActivator#started()
+     */
+    @Test
+    public void started_shouldCreateTheDemoPatientsOfTheShardsNoOtherNodeIsWorkingOn() throws Exception {
+        initializeInMemoryDatabase();
+        executeDataSet("requiredDataTestDataset.xml");
+        authenticate();
+        
+        new ReferenceMetadataActivator().started();
+        
+        ReferenceDemoDataActivator referenceDemoDataActivator = new ReferenceDemoDataActivator();
+        initMockGenerator(referenceDemoDataActivator);
+        referenceDemoDataActivator.started();
+        
+        // another node split 10 patients into shards of 4 and is working on the first one
+        DemoPatientShards otherNode = DemoPatientShards.create(10, 0, 4, new LocalDateTime(2016, 6, 15, 12, 0), "other-node");
+        assertArrayEquals(new int[] { 0, 4 }, otherNode.claim());
+        
+        referenceDemoDataActivator.started();
+        assertEquals(6, patientService.getAllPatients().size());
+        assertFalse(otherNode.isComplete());
+        // the progress only counts the shards this node claimed
+        assertEquals(6, ReferenceDemoDataActivator.getDemoPatientRun().getProgress().getTotalCount());
+        
+        // the last node to finish removes the shards
+        otherNode.recordProgress(0, 4);
+        referenceDemoDataActivator.started();
+        assertNull(DemoPatientShards.load("this-node"));
+    }
+    
+    /**
+     * @verifies top up the demo patients to the target count
+     * @see ReferenceDemoDataActivator#started()
+     */
+    @Test
+    public void started_shouldTopUpTheDemoPatientsToTheTargetCount() throws Exception {
+        final String referenceDate = "2016-06-15T12:00:00";
+        initializeInMemoryDatabase();
+        executeDataSet("requiredDataTestDataset.xml");
+        authenticate();
+        
+        new ReferenceMetadataActivator().started();
+        
+        ReferenceDemoDataActivator referenceDemoDataActivator = new ReferenceDemoDataActivator();
+        initMockGenerator(referenceDemoDataActivator);
+        adminService.setGlobalProperty(ReferenceDemoDataConstants.DEMO_DATA_REFERENCE_DATE, referenceDate);
+        adminService.setGlobalProperty(ReferenceDemoDataConstants.DEMO_PATIENT_TARGET, "5");
+        referenceDemoDataActivator.started();
+        assertEquals(5, patientService.getAllPatients().size());
+        
+        // already at the target
+        referenceDemoDataActivator.started();
+        assertEquals(5, patientService.getAllPatients().size());
+        
+        adminService.setGlobalProperty(ReferenceDemoDataConstants.DEMO_PATIENT_TARGET, "8");
+        referenceDemoDataActivator.started();
+        List<Patient> toppedUpPatients = new ArrayList<Patient>(patientService.getAllPatients());
+        assertEquals(8, toppedUpPatients.size());
+        long toppedUpDigest = digest(toppedUpPatients, referenceDate);
+        
+        // the same patients as the first 8 of a single run, rather than the first 3 created again
+        adminService.setGlobalProperty(ReferenceDemoDataConstants.DEMO_PATIENT_TARGET, "0");
+        createDemoPatients(referenceDemoDataActivator, 8, "service");
+        List<Patient> singleRunPatients = new ArrayList<Patient>(patientService.getAllPatients());
+        singleRunPatients.removeAll(toppedUpPatients);
+        assertEquals(8, singleRunPatients.size());
+        assertEquals(digest(singleRunPatients, referenceDate), toppedUpDigest);
+    }
+    
+    /**
+     * @verifies only create the demo patients missing from the checkpoint
+     * @see ReferenceDemoDataActivator#started()
+     */
+    @Test
+    public void started_shouldOnlyCreateTheDemoPatientsMissingFromTheCheckpoint() throws Exception {
+        final String referenceDate = "2016-06-15T12:00:00";
+        initializeInMemoryDatabase();
+        executeDataSet("requiredDataTestDataset.xml");
+        authenticate();
+        
+        new ReferenceMetadataActivator().started();
+        
+        ReferenceDemoDataActivator referenceDemoDataActivator = new ReferenceDemoDataActivator();
+        initMockGenerator(referenceDemoDataActivator);
+        referenceDemoDataActivator.started();
+        adminService.setGlobalProperty(ReferenceDemoDataConstants.DEMO_DATA_REFERENCE_DATE, referenceDate);
+        
+        // an interrupted run of 6 patients committed the patients 0, 1 and 4
+        adminService.setGlobalProperty(ReferenceDemoDataConstants.DEMO_PATIENT_CHECKPOINT, "6:0-2,4-5");
+        createDemoPatients(referenceDemoDataActivator, 6, "service");
+        List<Patient> resumedPatients = new ArrayList<Patient>(patientService.getAllPatients());
+        long resumedDigest = digest(resumedPatients, referenceDate);
+        assertEquals(3, resumedPatients.size());
+        assertNull(adminService.getGlobalProperty(ReferenceDemoDataConstants.DEMO_PATIENT_CHECKPOINT));
+        
+        // they are the patients 2, 3 and 5 of a complete run
+        createDemoPatients(referenceDemoDataActivator, 6, "service");
+        List<Patient> completePatients = new ArrayList<Patient>(patientService.getAllPatients());
+        completePatients.removeAll(resumedPatients);
+        Collections.sort(completePatients, DemoDataReferenceData.BY_ID);
+        assertEquals(6, completePatients.size());
+        assertEquals(digest(completePatients.subList(2, 4), referenceDate)
+                + digest(completePatients.subList(5, 6), referenceDate), resumedDigest);
+    }
+    
+    /**
+     * @verifies create the same demo patients with several threads as with one
+     * @see ReferenceDemoDataActivator#started()
+     */
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void started_shouldCreateTheSameDemoPatientsWithSeveralThreadsAsWithOne() throws Exception {
+        final int demoPatientCount = 12;
+        Properties runtimeProperties = Context.getRuntimeProperties();
+        try {
+            initializeInMemoryDatabase();
+            executeDataSet("requiredDataTestDataset.xml");
+            authenticate();
+            
+            new ReferenceMetadataActivator().started();
+            
+            ReferenceDemoDataActivator referenceDemoDataActivator = new ReferenceDemoDataActivator();
+            initMockGenerator(referenceDemoDataActivator);
+            referenceDemoDataActivator.started();
+            adminService.setGlobalProperty(ReferenceDemoDataConstants.DEMO_DATA_REFERENCE_DATE, "2016-06-15T12:00:00");
+            adminService.setGlobalProperty(ReferenceDemoDataConstants.DEMO_PATIENT_BATCH_SIZE, "2");
+            // the workers have sessions of their own, they only see what was committed
+            getConnection().commit();
+            
+            createDemoPatients(referenceDemoDataActivator, demoPatientCount, "service");
+            DemoDataDigest singleThreadDigest = ReferenceDemoDataActivator.getDemoPatientRun().getDigest();
+            
+            Properties threads = Context.getRuntimeProperties();
+            threads.setProperty(ReferenceDemoDataConstants.DEMO_PATIENT_THREADS, "3");
+            Context.setRuntimeProperties(threads);
+            referenceDemoDataActivator.setDaemonExecutor(new SessionThreadExecutor(true));
+            createDemoPatients(referenceDemoDataActivator, demoPatientCount, "service");
+            DemoDataDigest threeThreadDigest = ReferenceDemoDataActivator.getDemoPatientRun().getDigest();
+            
+            assertEquals(2 * demoPatientCount, patientService.getAllPatients().size());
+            assertEquals(demoPatientCount, threeThreadDigest.getPatientCount());
+            assertEquals(singleThreadDigest.getValue(), threeThreadDigest.getValue());
+        }
+        finally {
+            Context.setRuntimeProperties(runtimeProperties);
+            deleteAllData();
+        }
+    }
+    
+    /**
+     * Runs every task in a thread of its own with a session of its own, like the daemon threads.
+     */
+    private static class SessionThreadExecutor implements Executor {
+        
+        private final boolean authenticate;
+        
+        SessionThreadExecutor(boolean authenticate) {
+            this.authenticate = authenticate;
+        }
+        
+        @Override
+        public void execute(final Runnable task) {
+            new Thread(new Runnable() {
+                
+                @Override
+                public void run() {
+                    Context.openSession();
+                    try {
+                        if (authenticate) {
+                            Context.authenticate("admin", "test");
+                        }
+                        task.run();
+                    }
+                    finally {
+                        Context.closeSession();
+                    }
+                }
+            }).start();
+        }
+    }
+    
+    private void createDemoPatientsInBatchesOf(ReferenceDemoDataActivator referenceDemoDataActivator, int demoPatientCount,
+                                               int batchSize) {
+        adminService.setGlobalProperty(ReferenceDemoDataConstants.DEMO_PATIENT_BATCH_SIZE, "" + batchSize);
+        adminService.setGlobalProperty(ReferenceDemoDataConstants.CREATE_DEMO_PATIENTS_ON_NEXT_STARTUP, "" + demoPatientCount);
+        referenceDemoDataActivator.started();
+    }
+    
+    /**
+     * @verifies create the same demo data with the jdbc loader as with the services
+     * @see ReferenceDemoDataActivator#started()
+     */
+    @Test
+    public void started_shouldCreateTheSameDemoDataWithTheJdbcLoaderAsWithTheServices() throws Exception {
+        final int demoPatientCount = 5;
+        final String referenceDate = "2016-06-15T12:00:00";
+        initializeInMemoryDatabase();
+        executeDataSet("requiredDataTestDataset.xml");
+        authenticate();
+        
+        new ReferenceMetadataActivator().started();
+        
+        ReferenceDemoDataActivator referenceDemoDataActivator = new ReferenceDemoDataActivator();
+        initMockGenerator(referenceDemoDataActivator);
+        referenceDemoDataActivator.started();
+        adminService.setGlobalProperty(ReferenceDemoDataConstants.DEMO_DATA_REFERENCE_DATE, referenceDate);
+        
+        createDemoPatients(referenceDemoDataActivator, demoPatientCount, "service");
+        List<Patient> servicePatients = new ArrayList<Patient>(patientService.getAllPatients());
+        long serviceDigest = digest(servicePatients, referenceDate);
+        
+        createDemoPatients(referenceDemoDataActivator, demoPatientCount, "jdbc");
+        List<Patient> jdbcPatients = new ArrayList<Patient>(patientService.getAllPatients());
+        jdbcPatients.removeAll(servicePatients);
+        
+        assertEquals(demoPatientCount, jdbcPatients.size());
+        assertEquals(serviceDigest, digest(jdbcPatients, referenceDate));
+        // the patients written behind Hibernate's back are found by the patient search too
+        Patient jdbcPatient = jdbcPatients.get(0);
+        assertTrue(patientService.getPatients(jdbcPatient.getPersonName().getGivenName()).contains(jdbcPatient));
+    }
+    
+    /**
+     * @verifies create the demo patients with the jdbc loader while patients are registered through the services
+     * @see ReferenceDemoDataActivator#started()
+     */
+    @Test
+    public void started_shouldCreateTheDemoPatientsWithTheJdbcLoaderWhilePatientsAreRegisteredThroughTheServices()
+            throws Exception {
+        final int demoPatientCount = 6;
+        initializeInMemoryDatabase();
+        executeDataSet("requiredDataTestDataset.xml");
+        authenticate();
+        
+        new ReferenceMetadataActivator().started();
+        
+        ReferenceDemoDataActivator referenceDemoDataActivator = new ReferenceDemoDataActivator();
+        initMockGenerator(referenceDemoDataActivator);
+        referenceDemoDataActivator.started();
+        adminService.setGlobalProperty(ReferenceDemoDataConstants.DEMO_PATIENT_BATCH_SIZE, "2");
+        
+        // registered while the second batch is being generated, after the first one took its ids
+        registerPatientAtSeed = seed + 4;
+        createDemoPatients(referenceDemoDataActivator, demoPatientCount, "jdbc");
+        
+        List<Patient> allPatients = patientService.getAllPatients();
+        assertEquals(demoPatientCount + 1, allPatients.size());
+        assertEquals(demoPatientCount, ReferenceDemoDataActivator.getDemoPatientRun().getDigest().getPatientCount());
+    }
+    
+    /**
+     * @verifies write every visit with its encounters and obs in a single save
+     * @see ReferenceDemoDataActivator#started()
+     */
+    @Test
+    public void started_shouldWriteEveryVisitWithItsEncountersAndObsInASingleSave() throws Exception {
+        final int demoPatientCount = 5;
+        final long demoDataSeed = 42;
+        final String referenceDate = "2016-06-15T12:00:00";
+        initializeInMemoryDatabase();
+        executeDataSet("requiredDataTestDataset.xml");
+        authenticate();
+
+        new ReferenceMetadataActivator().started();
+
+        ReferenceDemoDataActivator referenceDemoDataActivator = new ReferenceDemoDataActivator();
+        initMockGenerator(referenceDemoDataActivator);
+        referenceDemoDataActivator.started();
+        adminService.setGlobalProperty(ReferenceDemoDataConstants.DEMO_DATA_SEED, "" + demoDataSeed);
+        adminService.setGlobalProperty(ReferenceDemoDataConstants.DEMO_DATA_REFERENCE_DATE, referenceDate);
+        createDemoPatients(referenceDemoDataActivator, demoPatientCount, "service");
+
+        List<Patient> singleSavePatients = new ArrayList<Patient>(patientService.getAllPatients());
+        int encounterCount = 0;
+        int obsCount = 0;
+        for (Patient patient : singleSavePatients) {
+            encounterCount += Context.getEncounterService().getEncountersByPatient(patient).size();
+            obsCount += Context.getObsService().getObservationsByPerson(patient).size();
+        }
+        DemoDataMetrics metrics = ReferenceDemoDataActivator.getMetrics();
+        assertEquals(visitService.getAllVisits().size(), metrics.getLatency(DemoDataMetrics.SaveCall.SAVE_VISIT).getCount());
+        assertEquals(metrics.getVisitCount(), metrics.getLatency(DemoDataMetrics.SaveCall.SAVE_VISIT).getCount());
+        assertEquals(metrics.getEncounterCount(), encounterCount);
+        assertEquals(metrics.getObsCount(), obsCount);
+        long singleSaveDigest = digest(singleSavePatients, referenceDate);
+
+        // the rows read back are the same as when every encounter and obs was saved on its own
+        createDemoPatientsOneSaveAtATime(demoPatientCount, demoDataSeed, referenceDate);
+        List<Patient> oneSaveAtATimePatients = new ArrayList<Patient>(patientService.getAllPatients());
+        oneSaveAtATimePatients.removeAll(singleSavePatients);
+        assertEquals(demoPatientCount, oneSaveAtATimePatients.size());
+        assertEquals(digest(oneSaveAtATimePatients, referenceDate), singleSaveDigest);
+    }
+
+    /**
+     * Creates the demo patients like the activator does, but saves them the way the generator did before visits were
+     * saved in one go.
+     */
+    private void createDemoPatientsOneSaveAtATime(int demoPatientCount, long demoDataSeed, String referenceDate) {
+        List<Location> rootLocations = new ArrayList<Location>(Context.getLocationService().getRootLocations(false));
+        Collections.sort(rootLocations, DemoDataReferenceData.BY_ID);
+        Location rootLocation = rootLocations.get(new SplittableRandom(demoDataSeed).nextInt(rootLocations.size()));
+        DemoPatientRun run = new DemoPatientRun(demoDataSeed, new LocalDateTime(referenceDate), DemoDataProfile.load(),
+                demoPatientCount, DiagnosisConceptPool.load(Integer.parseInt(adminService.getGlobalProperty(
+                    ReferenceDemoDataConstants.DIAGNOSIS_POOL_SIZE, "0").trim())),
+                DemoPatientCheckpoint.load(demoPatientCount, 0), DemoPatientRun.Loader.SERVICE, new DemoDataMetrics());
+        new DemoPatientGenerator(mockIss, DemoDataReferenceData.load(DemoPatientGenerator.REQUIRED_CONCEPT_NAMES), run,
+                new OneSaveAtATimeDemoDataWriter(), Context.getConceptService()).createDemoPatients(0, demoPatientCount,
+            rootLocation);
+        DemoPatientCheckpoint.clear();
+        Context.flushSession();
+        Context.clearSession();
+    }
+
+    /**
+     * Saves the visit on its own, then every encounter before its obs are added and every obs on its own.
+     */
+    private static class OneSaveAtATimeDemoDataWriter implements DemoDataWriter {
+
+        @Override
+        public void savePatient(Patient patient) {
+            Context.getPatientService().savePatient(patient);
+        }
+
+        @Override
+        public void saveVisit(Visit visit) {
+            Set<Encounter> encounters = new HashSet<Encounter>(visit.getEncounters());
+            visit.getEncounters().clear();
+            Context.getVisitService().saveVisit(visit);
+            for (Encounter encounter : encounters) {
+                List<Obs> topLevelObs = new ArrayList<Obs>(encounter.getObsAtTopLevel(false));
+                encounter.setObs(new HashSet<Obs>());
+                Context.getEncounterService().saveEncounter(encounter);
+                for (Obs obs : topLevelObs) {
+                    encounter.addObs(obs);
+                    Context.getObsService().saveObs(obs, null);
+                }
+            }
+            visit.getEncounters().addAll(encounters);
+        }
+
+        @Override
+        public void flush() {
+            Context.flushSession();
+        }
+    }
+
+    private void createDemoPatients(ReferenceDemoDataActivator referenceDemoDataActivator, int demoPatientCount,
+                                    String loader) {
+        adminService.setGlobalProperty(ReferenceDemoDataConstants.DEMO_PATIENT_LOADER, loader);
+        adminService.setGlobalProperty(ReferenceDemoDataConstants.CREATE_DEMO_PATIENTS_ON_NEXT_STARTUP, "" + demoPatientCount);
+        referenceDemoDataActivator.started();
+        // read back what was written rather than what is left in the session
+        Context.flushSession();
+        Context.clearSession();
+    }
+    
+    private long digest(List<Patient> patients, String referenceDate) {
+        DemoDataDigest digest = new DemoDataDigest(new LocalDateTime(referenceDate));
+        for (Patient patient : patients) {
+            digest.add(patient, visitService.getVisitsByPatient(patient));
+        }
+        return digest.getValue();
     }
     
     long seed = 0;
+    IdentifierSourceService mockIss;
+    long registerPatientAtSeed = -1;
     SequentialIdentifierGenerator mockIdGenerator;
 
     private void initMockGenerator(ReferenceDemoDataActivator referenceDemoDataActivator) {
@@ -176,7 +779,7 @@ public class ReferenceDemoDataActivatorTest extends BaseModuleContextSensitiveTe
     	mockIdGenerator.setMinLength(6);
     	mockIdGenerator.setFirstIdentifierBase("10000");
 
-        IdentifierSourceService mockIss = Mockito.mock(IdentifierSourceService.class);
+        mockIss = Mockito.mock(IdentifierSourceService.class);
         Mockito.when(mockIss.generateIdentifier(Mockito.eq(openmrsIdType), Mockito.eq("DemoData"))).thenAnswer(new Answer<String>() {
         	@Override
         	public String answer(InvocationOnMock invocation) throws Throwable {
@@ -186,9 +789,27 @@ public class ReferenceDemoDataActivatorTest extends BaseModuleContextSensitiveTe
         referenceDemoDataActivator.setIdentifierSourceService(mockIss);
     }
     
-    private String generateIdentifier() {
+    private synchronized String generateIdentifier() {
     	seed++;
+    	if (seed == registerPatientAtSeed) {
+    		registerPatient();
+    	}
 	    return mockIdGenerator.getIdentifierForSeed(seed);
     }
     
+    /**
+     * Registers a patient through the services, like a user would.
+     */
+    private void registerPatient() {
+    	Patient patient = new Patient();
+    	patient.setGender("F");
+    	patient.addName(new PersonName("Registered", null, "Patient"));
+    	PatientIdentifier identifier = new PatientIdentifier(generateIdentifier(), mockIdGenerator.getIdentifierType(),
+    	        Context.getLocationService().getDefaultLocation());
+    	identifier.setPreferred(true);
+    	patient.addIdentifier(identifier);
+    	patientService.savePatient(patient);
+    	Context.flushSession();
+    }
+    
 }